@@ -0,0 +1,143 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) Open Application Platform Authors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package oap.tree;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Inverted index of the sets of an array node: encoded value -> sets holding it.
+ * <p>
+ * A query only touches the sets sharing a value with it: an {@code OR} set matches on the first hit,
+ * an {@code AND} set when all of its values are hit. {@code NOT} sets match unless hit, they are kept
+ * as a separate list and evaluated as the complement of the hit ones.
+ * <p>
+ * {@link CompiledTree} and {@link OffHeapTree} keep the same index serialized in their {@code setIndex} columns.
+ */
+final class ArraySetIndex {
+    /**
+     * distinct values of all sets, sorted
+     */
+    final long[] values;
+    /**
+     * sets of {@code values[i]} are {@code postings[offsets[i]..offsets[i + 1])}
+     */
+    final int[] offsets;
+    final int[] postings;
+    private final Tree.ArrayOperation[] operations;
+    private final int[] cardinality;
+    final int[] notSets;
+
+    ArraySetIndex( List<Bits> bitSets, List<Tree.ArrayOperation> operations ) {
+        var size = bitSets.size();
+        this.operations = operations.toArray( new Tree.ArrayOperation[0] );
+        this.cardinality = new int[size];
+
+        var total = 0;
+        var notCount = 0;
+        for( var s = 0; s < size; s++ ) {
+            cardinality[s] = bitSets.get( s ).cardinality();
+            total += cardinality[s];
+            if( this.operations[s] == Tree.ArrayOperation.NOT ) notCount++;
+        }
+
+        notSets = new int[notCount];
+        // value << 32 | set, sorted by value then set
+        var pairs = new long[total];
+        var p = 0;
+        var n = 0;
+        for( var s = 0; s < size; s++ ) {
+            if( this.operations[s] == Tree.ArrayOperation.NOT ) notSets[n++] = s;
+            for( var v : bitSets.get( s ).stream().toArray() ) pairs[p++] = ( ( long ) v << 32 ) | s;
+        }
+        Arrays.sort( pairs );
+
+        var distinct = 0;
+        for( var i = 0; i < total; i++ ) {
+            if( i == 0 || pairs[i] >>> 32 != pairs[i - 1] >>> 32 ) distinct++;
+        }
+        values = new long[distinct];
+        offsets = new int[distinct + 1];
+        postings = new int[total];
+        var v = -1;
+        for( var i = 0; i < total; i++ ) {
+            if( i == 0 || pairs[i] >>> 32 != pairs[i - 1] >>> 32 ) {
+                values[++v] = pairs[i] >>> 32;
+                offsets[v] = i;
+            }
+            postings[i] = ( int ) pairs[i];
+        }
+        offsets[distinct] = total;
+    }
+
+    int size() {
+        return cardinality.length;
+    }
+
+    /**
+     * Finds the sets matching the query.
+     *
+     * @param qValue  sorted distinct query values, see {@link Dimension#getOrDefault(Object, long[])}
+     * @param hits    scratch of at least {@link #size()} zeroes, left zeroed
+     * @param matches scratch of at least {@link #size()}, receives the indexes of the matching sets
+     * @return number of matching sets
+     */
+    int match( long[] qValue, int qLength, int[] hits, int[] matches ) {
+        var touched = 0;
+        var position = 0;
+        for( var i = 0; i < qLength && position < values.length; i++ ) {
+            position = Dimension.lowerBound( values, position, values.length, qValue[i] );
+            if( position == values.length || values[position] != qValue[i] ) continue;
+
+            for( int p = offsets[position], end = offsets[position + 1]; p < end; p++ ) {
+                var s = postings[p];
+                if( hits[s]++ == 0 ) matches[touched++] = s;
+            }
+        }
+
+        var found = 0;
+        for( var i = 0; i < touched; i++ ) {
+            var s = matches[i];
+            switch( operations[s] ) {
+                case OR -> {
+                    matches[found++] = s;
+                    hits[s] = 0;
+                }
+                case AND -> {
+                    if( hits[s] == cardinality[s] ) matches[found++] = s;
+                    hits[s] = 0;
+                }
+                case NOT -> {
+                    // reset with the complement below
+                }
+                default -> throw new IllegalStateException( "Unknown Operation type " + operations[s].name() );
+            }
+        }
+        for( var s : notSets ) {
+            if( hits[s] == 0 ) matches[found++] = s;
+            else hits[s] = 0;
+        }
+        return found;
+    }
+}
@@ -0,0 +1,73 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) Open Application Platform Authors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package oap.tree;
+
+import java.util.stream.IntStream;
+
+/**
+ * Read-only set of non-negative ints used by array sets and pre-filters.
+ * <p>
+ * {@link #of(java.util.BitSet)} keeps plain words when the set is dense and {@link CompressedBits}
+ * (array, bitmap and run containers) when that is smaller, so a handful of ids out of a dictionary
+ * of millions does not cost a word per 64 possible ids.
+ */
+public interface Bits {
+    Bits EMPTY = new DenseBits( new long[0] );
+
+    static Bits of( java.util.BitSet bitSet ) {
+        if( bitSet.isEmpty() ) return EMPTY;
+        return CompressedBits.sizeInBytes( bitSet ) < DenseBits.sizeInBytes( bitSet )
+            ? CompressedBits.of( bitSet )
+            : new DenseBits( bitSet.toLongArray() );
+    }
+
+    boolean get( long bit );
+
+    int cardinality();
+
+    default boolean isEmpty() {
+        return cardinality() == 0;
+    }
+
+    /**
+     * @return highest bit + 1, 0 if empty
+     */
+    int length();
+
+    /**
+     * @return set bits in ascending order
+     */
+    IntStream stream();
+
+    /**
+     * @return approximate heap size
+     */
+    long sizeInBytes();
+
+    default java.util.BitSet toBitSet() {
+        var bitSet = new java.util.BitSet( length() );
+        stream().forEach( bitSet::set );
+        return bitSet;
+    }
+}
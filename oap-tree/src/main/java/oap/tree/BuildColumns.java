@@ -0,0 +1,300 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) Open Application Platform Authors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package oap.tree;
+
+import lombok.EqualsAndHashCode;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.IntUnaryOperator;
+import java.util.stream.IntStream;
+
+import static oap.tree.CardinalitySketch.mix;
+import static oap.tree.Consts.ANY_AS_ARRAY;
+
+/**
+ * Input of {@link Tree#load(List)} encoded once into columns, the build selects splits and partitions
+ * ranges of one row permutation in place instead of decoding the {@link Tree.ValueData} at every level.
+ * <p>
+ * A non-array dimension keeps the first encoded value of every row and the rows with no value (any),
+ * an array dimension keeps an id of the non-empty {@link Tree.Array} of every row.
+ */
+final class BuildColumns {
+    static final int NO_ARRAY = -1;
+    static final int ANY = 0;
+    static final int LEFT = 1;
+    static final int EQUAL = 2;
+    static final int RIGHT = 3;
+
+    final int size;
+    /**
+     * selection id of every row
+     */
+    final int[] selections;
+    /**
+     * permutation of the row numbers, every node of the build owns a range of it
+     */
+    final int[] rows;
+    /**
+     * [dimension][row], null for array dimensions
+     */
+    final long[][] values;
+    /**
+     * [dimension], rows with no value, null for array dimensions
+     */
+    final BitSet[] any;
+    /**
+     * [dimension][row], index in {@link #arrays} or {@link #NO_ARRAY}, null for other dimensions
+     */
+    final int[][] arrayIds;
+    /**
+     * [dimension][array id], distinct non-empty arrays
+     */
+    final Tree.Array[][] arrays;
+    /**
+     * [row], two independent hashes of the selection id and the encoded values of every row,
+     * null unless {@link #fingerprints(List)} was called
+     */
+    private long[] rowHashes;
+    private long[] rowHashes2;
+
+    BuildColumns( List<? extends Dimension<?>> dimensions, List<? extends Tree.ValueData<?>> data, int[] selections ) {
+        this.size = data.size();
+        this.selections = selections;
+        this.rows = IntStream.range( 0, size ).toArray();
+
+        var count = dimensions.size();
+        values = new long[count][];
+        any = new BitSet[count];
+        arrayIds = new int[count][];
+        arrays = new Tree.Array[count][];
+
+        for( var d = 0; d < count; d++ ) {
+            var dimension = dimensions.get( d );
+            if( dimension.operationType == null ) {
+                var ids = new int[size];
+                var distinct = new HashMap<Tree.Array, Integer>();
+                for( var row = 0; row < size; row++ ) {
+                    ids[row] = data.get( row ).data.get( d ) instanceof Tree.Array array && !array.isEmpty()
+                        ? distinct.computeIfAbsent( array, a -> distinct.size() )
+                        : NO_ARRAY;
+                }
+                arrayIds[d] = ids;
+                arrays[d] = toArray( distinct );
+            } else {
+                var column = new long[size];
+                var anyRows = new BitSet( size );
+                for( var row = 0; row < size; row++ ) {
+                    var value = dimension.getOrDefault( data.get( row ).data.get( d ), ANY_AS_ARRAY );
+                    if( value == ANY_AS_ARRAY ) anyRows.set( row );
+                    else column[row] = value[0];
+                }
+                values[d] = column;
+                any[d] = anyRows;
+            }
+        }
+    }
+
+    private static Tree.Array[] toArray( Map<Tree.Array, Integer> distinct ) {
+        var result = new Tree.Array[distinct.size()];
+        distinct.forEach( ( array, id ) -> result[id] = array );
+        return result;
+    }
+
+    boolean isArray( int dimension ) {
+        return arrayIds[dimension] != null;
+    }
+
+    /**
+     * @return sorted distinct values of the rows in [from, to) with a value
+     */
+    long[] unique( int dimension, int from, int to ) {
+        var column = values[dimension];
+        var anyRows = any[dimension];
+        var result = new long[to - from];
+        var size = 0;
+        for( var i = from; i < to; i++ ) {
+            var row = rows[i];
+            if( !anyRows.get( row ) ) result[size++] = column[row];
+        }
+        if( size == 0 ) return new long[0];
+
+        Arrays.sort( result, 0, size );
+        var distinct = 1;
+        for( var i = 1; i < size; i++ ) {
+            if( result[i] != result[distinct - 1] ) result[distinct++] = result[i];
+        }
+        return Arrays.copyOf( result, distinct );
+    }
+
+    /**
+     * @return number of distinct non-empty arrays of the rows in [from, to)
+     */
+    int uniqueArrays( int dimension, int from, int to ) {
+        var ids = arrayIds[dimension];
+        var seen = new BitSet( arrays[dimension].length );
+        for( var i = from; i < to; i++ ) {
+            var id = ids[rows[i]];
+            if( id != NO_ARRAY ) seen.set( id );
+        }
+        return seen.cardinality();
+    }
+
+    /**
+     * Moves the rows in [from, to) into {@link #ANY}, {@link #LEFT}, {@link #EQUAL} and {@link #RIGHT} of the value.
+     */
+    int[] partition( int dimension, int from, int to, long value ) {
+        var column = values[dimension];
+        var anyRows = any[dimension];
+        return partition( from, to, RIGHT + 1, row -> {
+            if( anyRows.get( row ) ) return ANY;
+            var v = column[row];
+            return v < value ? LEFT : v == value ? EQUAL : RIGHT;
+        } );
+    }
+
+    /**
+     * Moves the rows in [from, to) into {@link #ANY} and a bucket per key after it.
+     *
+     * @param keys sorted distinct values of the rows
+     */
+    int[] partition( int dimension, int from, int to, long[] keys ) {
+        var column = values[dimension];
+        var anyRows = any[dimension];
+        return partition( from, to, keys.length + 1,
+            row -> anyRows.get( row ) ? ANY : Arrays.binarySearch( keys, column[row] ) + 1 );
+    }
+
+    /**
+     * Moves the rows in [from, to) into {@link #ANY} (no array) and a bucket per array after it,
+     * in order of first appearance.
+     *
+     * @param keys receives the array of every bucket
+     */
+    int[] partition( int dimension, int from, int to, List<Tree.Array> keys ) {
+        var ids = arrayIds[dimension];
+        var bucketOfId = new int[arrays[dimension].length];
+        for( var i = from; i < to; i++ ) {
+            var id = ids[rows[i]];
+            if( id != NO_ARRAY && bucketOfId[id] == 0 ) {
+                keys.add( arrays[dimension][id] );
+                bucketOfId[id] = keys.size();
+            }
+        }
+        return partition( from, to, keys.size() + 1, row -> ids[row] == NO_ARRAY ? ANY : bucketOfId[ids[row]] );
+    }
+
+    /**
+     * In place bucket permutation of {@link #rows}, bucket b ends up in [bounds[b], bounds[b + 1]).
+     */
+    private int[] partition( int from, int to, int buckets, IntUnaryOperator bucketOf ) {
+        var bounds = new int[buckets + 1];
+        for( var i = from; i < to; i++ ) bounds[bucketOf.applyAsInt( rows[i] ) + 1]++;
+        bounds[0] = from;
+        for( var b = 0; b < buckets; b++ ) bounds[b + 1] += bounds[b];
+
+        var next = Arrays.copyOf( bounds, buckets );
+        for( var b = 0; b < buckets; b++ ) {
+            while( next[b] < bounds[b + 1] ) {
+                var row = rows[next[b]];
+                var target = bucketOf.applyAsInt( row );
+                if( target == b ) next[b]++;
+                else {
+                    rows[next[b]] = rows[next[target]];
+                    rows[next[target]++] = row;
+                }
+            }
+        }
+        return bounds;
+    }
+
+    /**
+     * Hashes every row for {@link #fingerprint(int, int, BitSet)}, arrays by their encoded values.
+     */
+    void fingerprints( List<? extends Dimension<?>> dimensions ) {
+        var codes = new long[dimensions.size()][];
+        for( var d = 0; d < codes.length; d++ ) {
+            if( !isArray( d ) ) continue;
+            codes[d] = new long[arrays[d].length];
+            for( var id = 0; id < arrays[d].length; id++ ) {
+                var array = arrays[d][id];
+                var hash = ( long ) array.operation.ordinal();
+                for( var word : dimensions.get( d ).toBitSet( array ).toLongArray() ) hash = mix( hash * 31 + word );
+                codes[d][id] = hash;
+            }
+        }
+
+        rowHashes = new long[size];
+        rowHashes2 = new long[size];
+        for( var row = 0; row < size; row++ ) {
+            var hash = ( long ) selections[row];
+            var hash2 = ~hash;
+            for( var d = 0; d < codes.length; d++ ) {
+                long code;
+                if( isArray( d ) ) code = arrayIds[d][row] == NO_ARRAY ? Long.MIN_VALUE : codes[d][arrayIds[d][row]];
+                else code = any[d].get( row ) ? Long.MIN_VALUE : values[d][row];
+                hash = mix( hash * 0x9e3779b97f4a7c15L + code );
+                hash2 = mix( hash2 * 0xc2b2ae3d27d4eb4fL + code + d );
+            }
+            rowHashes[row] = hash;
+            rowHashes2[row] = hash2;
+        }
+    }
+
+    /**
+     * @param eq dimensions the subtree does not split on
+     * @return key of the subtree built from the rows in [from, to), whatever their order
+     */
+    Fingerprint fingerprint( int from, int to, BitSet eq ) {
+        var hash = 0L;
+        var hash2 = 0L;
+        for( var i = from; i < to; i++ ) {
+            hash += rowHashes[rows[i]];
+            hash2 += rowHashes2[rows[i]];
+        }
+        return new Fingerprint( hash, hash2, to - from, eq );
+    }
+
+    /**
+     * Same rows (selection ids and encoded values) and the same dimensions left to split on make the same subtree.
+     * Rows are compared by 128 bits of hashes, not one by one.
+     */
+    @EqualsAndHashCode
+    static final class Fingerprint {
+        private final long hash;
+        private final long hash2;
+        private final int size;
+        private final BitSet eq;
+
+        Fingerprint( long hash, long hash2, int size, BitSet eq ) {
+            this.hash = hash;
+            this.hash2 = hash2;
+            this.size = size;
+            this.eq = eq;
+        }
+    }
+}
@@ -0,0 +1,89 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) Open Application Platform Authors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package oap.tree;
+
+import java.util.Objects;
+
+/**
+ * HyperLogLog estimate of the number of distinct values, with linear counting for small cardinalities.
+ * Takes 2^precision bytes whatever the number of values, the standard error is about 1.04 / sqrt(2^precision).
+ *
+ * @see TreeBuilder#withUniqueCountSketch(int)
+ */
+public final class CardinalitySketch {
+    public static final int MIN_PRECISION = 4;
+    public static final int MAX_PRECISION = 18;
+
+    private final int precision;
+    private final byte[] registers;
+
+    public CardinalitySketch( int precision ) {
+        this.precision = checkPrecision( precision );
+        this.registers = new byte[1 << precision];
+    }
+
+    static int checkPrecision( int precision ) {
+        if( precision < MIN_PRECISION || precision > MAX_PRECISION )
+            throw new IllegalArgumentException( "precision " + precision + " not in [" + MIN_PRECISION + ", " + MAX_PRECISION + "]" );
+        return precision;
+    }
+
+    public void add( Object value ) {
+        addHash( Objects.hashCode( value ) );
+    }
+
+    public void addHash( long hash ) {
+        var h = mix( hash );
+        var register = ( int ) ( h >>> ( Long.SIZE - precision ) );
+        var rank = ( byte ) Math.min( Long.numberOfLeadingZeros( h << precision ) + 1, Long.SIZE - precision + 1 );
+        if( rank > registers[register] ) registers[register] = rank;
+    }
+
+    public long estimate() {
+        var m = registers.length;
+        var sum = 0.0;
+        var zeros = 0;
+        for( var register : registers ) {
+            sum += 1.0 / ( 1L << register );
+            if( register == 0 ) zeros++;
+        }
+        var estimate = 0.7213 / ( 1 + 1.079 / m ) * m * m / sum;
+        if( estimate <= 2.5 * m && zeros > 0 ) estimate = m * Math.log( ( double ) m / zeros );
+
+        return Math.round( estimate );
+    }
+
+    /**
+     * murmur3 finalizer, spreads hash codes of small values over all the bits
+     */
+    static long mix( long hash ) {
+        var h = hash;
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+}
@@ -0,0 +1,475 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) Open Application Platform Authors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package oap.tree;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Read-only struct-of-arrays copy of a built {@link Tree}, see {@link Tree#compile()}.
+ * <p>
+ * Every node is an index into parallel primitive arrays laid out in depth-first order,
+ * so a find walks a handful of large arrays instead of an object graph.
+ */
+public final class CompiledTree<T> {
+    static final byte LEAF = 0;
+    static final byte NODE = 1;
+    static final byte ARRAY = 2;
+    static final byte HASH = 3;
+    static final byte SPARSE_HASH = 4;
+
+    /**
+     * {@link #setOperation} of {@link Tree.ArrayOperation#OR}, {@link Tree.ArrayOperation#AND} and {@link Tree.ArrayOperation#NOT} sets
+     */
+    static final byte SET_OR = 0;
+    static final byte SET_AND = 1;
+    static final byte SET_NOT = 2;
+
+    static final int NONE = -1;
+
+    final List<? extends Dimension<?>> dimensions;
+    final List<Tree.PreFilter> preFilters;
+    final boolean preFilter;
+
+    final byte[] kind;
+    final int[] dimension;
+    final long[] value;
+    final int[] left;
+    final int[] right;
+    final int[] equal;
+    final int[] any;
+    /**
+     * leaf: range in {@link #leafSelections}, hash: range in {@link #hashChildren}, array: range of sets.
+     */
+    final int[] offset;
+    final int[] length;
+
+    final int[] leafSelections;
+    final int[] hashChildren;
+    /**
+     * sorted values of sparse hash nodes, the node value is the offset of its keys, parallel to its children.
+     */
+    final long[] hashKeys;
+
+    final byte[] setOperation;
+    final int[] setChild;
+    final int[] setCardinality;
+    /**
+     * {@link ArraySetIndex} of every array node, the node value is the offset of its header:
+     * first value in {@link #setIndexValues}, number of values, offset and number of the {@code NOT} sets,
+     * then the posting offsets of every value, the postings and the {@code NOT} sets.
+     * Postings are set indexes relative to the first set of the node.
+     */
+    final int[] setIndex;
+    final long[] setIndexValues;
+
+    final Selections<T> selections;
+
+    private final Columns columns;
+
+    CompiledTree( List<? extends Dimension<?>> dimensions, List<Tree.PreFilter> preFilters, boolean preFilter,
+                  byte[] kind, int[] dimension, long[] value, int[] left, int[] right, int[] equal, int[] any,
+                  int[] offset, int[] length, int[] leafSelections, int[] hashChildren, long[] hashKeys,
+                  byte[] setOperation, int[] setChild, int[] setCardinality, int[] setIndex, long[] setIndexValues,
+                  Selections<T> selections ) {
+        this.dimensions = dimensions;
+        this.preFilters = preFilters;
+        this.preFilter = preFilter;
+        this.kind = kind;
+        this.dimension = dimension;
+        this.value = value;
+        this.left = left;
+        this.right = right;
+        this.equal = equal;
+        this.any = any;
+        this.offset = offset;
+        this.length = length;
+        this.leafSelections = leafSelections;
+        this.hashChildren = hashChildren;
+        this.hashKeys = hashKeys;
+        this.setOperation = setOperation;
+        this.setChild = setChild;
+        this.setCardinality = setCardinality;
+        this.setIndex = setIndex;
+        this.setIndexValues = setIndexValues;
+        this.selections = selections;
+        this.columns = new Columns( this );
+    }
+
+    public int getNodeCount() {
+        return kind.length;
+    }
+
+    public int getSelectionCount() {
+        return selections.size();
+    }
+
+    /**
+     * @see Tree#getSelection(int)
+     */
+    public T getSelection( int id ) {
+        return selections.get( id );
+    }
+
+    public QueryContext<T> newQueryContext() {
+        return new QueryContext<>( dimensions.size() );
+    }
+
+    /**
+     * @param stackCapacity initial traversal stack size, see {@link QueryContext#getMaxStackDepth()}
+     */
+    public QueryContext<T> newQueryContext( int stackCapacity ) {
+        return new QueryContext<>( dimensions.size(), stackCapacity );
+    }
+
+    public Set<T> find( List<?> query ) {
+        return find( query, newQueryContext() ).toSet();
+    }
+
+    /**
+     * @see Tree#find(List, QueryContext)
+     */
+    public QueryContext<T> find( List<?> query, QueryContext<T> context ) {
+        context.clear( selections );
+        context.encode( dimensions, query );
+
+        if( preFilter && !Tree.isSuccess( preFilters, context ) ) return context;
+
+        columns.find( dimensions, context );
+        return context;
+    }
+
+    /**
+     * The columns as arrays, the only implementation the JIT sees when no {@link OffHeapTree} is in use.
+     */
+    private static final class Columns extends TreeColumns {
+        private final byte[] kind;
+        private final int[] dimension;
+        private final long[] value;
+        private final int[] left;
+        private final int[] right;
+        private final int[] equal;
+        private final int[] any;
+        private final int[] offset;
+        private final int[] length;
+        private final int[] leafSelections;
+        private final int[] hashChildren;
+        private final long[] hashKeys;
+        private final byte[] setOperation;
+        private final int[] setChild;
+        private final int[] setCardinality;
+        private final int[] setIndex;
+        private final long[] setIndexValues;
+
+        private Columns( CompiledTree<?> tree ) {
+            kind = tree.kind;
+            dimension = tree.dimension;
+            value = tree.value;
+            left = tree.left;
+            right = tree.right;
+            equal = tree.equal;
+            any = tree.any;
+            offset = tree.offset;
+            length = tree.length;
+            leafSelections = tree.leafSelections;
+            hashChildren = tree.hashChildren;
+            hashKeys = tree.hashKeys;
+            setOperation = tree.setOperation;
+            setChild = tree.setChild;
+            setCardinality = tree.setCardinality;
+            setIndex = tree.setIndex;
+            setIndexValues = tree.setIndexValues;
+        }
+
+        @Override
+        int nodeCount() {
+            return kind.length;
+        }
+
+        @Override
+        byte kind( int n ) {
+            return kind[n];
+        }
+
+        @Override
+        int dimension( int n ) {
+            return dimension[n];
+        }
+
+        @Override
+        long value( int n ) {
+            return value[n];
+        }
+
+        @Override
+        int left( int n ) {
+            return left[n];
+        }
+
+        @Override
+        int right( int n ) {
+            return right[n];
+        }
+
+        @Override
+        int equal( int n ) {
+            return equal[n];
+        }
+
+        @Override
+        int any( int n ) {
+            return any[n];
+        }
+
+        @Override
+        int offset( int n ) {
+            return offset[n];
+        }
+
+        @Override
+        int length( int n ) {
+            return length[n];
+        }
+
+        @Override
+        int leafSelection( int i ) {
+            return leafSelections[i];
+        }
+
+        @Override
+        int hashChild( int i ) {
+            return hashChildren[i];
+        }
+
+        @Override
+        long hashKey( int i ) {
+            return hashKeys[i];
+        }
+
+        @Override
+        byte setOperation( int s ) {
+            return setOperation[s];
+        }
+
+        @Override
+        int setChild( int s ) {
+            return setChild[s];
+        }
+
+        @Override
+        int setCardinality( int s ) {
+            return setCardinality[s];
+        }
+
+        @Override
+        int setIndex( int i ) {
+            return setIndex[i];
+        }
+
+        @Override
+        long setIndexValue( int i ) {
+            return setIndexValues[i];
+        }
+    }
+
+    /**
+     * Growable columns filled by {@link Tree#compile()} in depth-first order.
+     */
+    static final class Layout<T> {
+        private byte[] kind = new byte[64];
+        private int[] dimension = new int[64];
+        private long[] value = new long[64];
+        private int[] left = new int[64];
+        private int[] right = new int[64];
+        private int[] equal = new int[64];
+        private int[] any = new int[64];
+        private int[] offset = new int[64];
+        private int[] length = new int[64];
+        private int nodes;
+
+        private int[] leafSelections = new int[64];
+        private int leafSelectionsSize;
+
+        private int[] hashChildren = new int[64];
+        private int hashChildrenSize;
+
+        private long[] hashKeys = new long[16];
+        private int hashKeysSize;
+
+        private byte[] setOperation = new byte[16];
+        private int[] setChild = new int[16];
+        private int[] setCardinality = new int[16];
+        private int sets;
+
+        private int[] setIndex = new int[64];
+        private int setIndexSize;
+
+        private long[] setIndexValues = new long[64];
+        private int setIndexValuesSize;
+
+        int addNode( byte kind, int dimension, long value ) {
+            if( nodes == this.kind.length ) {
+                var capacity = nodes * 2;
+                this.kind = Arrays.copyOf( this.kind, capacity );
+                this.dimension = Arrays.copyOf( this.dimension, capacity );
+                this.value = Arrays.copyOf( this.value, capacity );
+                left = Arrays.copyOf( left, capacity );
+                right = Arrays.copyOf( right, capacity );
+                equal = Arrays.copyOf( equal, capacity );
+                any = Arrays.copyOf( any, capacity );
+                offset = Arrays.copyOf( offset, capacity );
+                length = Arrays.copyOf( length, capacity );
+            }
+            var n = nodes++;
+            this.kind[n] = kind;
+            this.dimension[n] = dimension;
+            this.value[n] = value;
+            left[n] = NONE;
+            right[n] = NONE;
+            equal[n] = NONE;
+            any[n] = NONE;
+            return n;
+        }
+
+        int addLeaf( int[] selections ) {
+            var n = addNode( LEAF, NONE, 0 );
+            offset[n] = leafSelectionsSize;
+            length[n] = selections.length;
+            leafSelections = ensure( leafSelections, leafSelectionsSize + selections.length );
+            System.arraycopy( selections, 0, leafSelections, leafSelectionsSize, selections.length );
+            leafSelectionsSize += selections.length;
+            return n;
+        }
+
+        void children( int n, int left, int right, int equal, int any ) {
+            this.left[n] = left;
+            this.right[n] = right;
+            this.equal[n] = equal;
+            this.any[n] = any;
+        }
+
+        void any( int n, int any ) {
+            this.any[n] = any;
+        }
+
+        int addHash( int n, int size ) {
+            offset[n] = hashChildrenSize;
+            length[n] = size;
+            hashChildren = ensure( hashChildren, hashChildrenSize + size );
+            Arrays.fill( hashChildren, hashChildrenSize, hashChildrenSize + size, NONE );
+            hashChildrenSize += size;
+            return offset[n];
+        }
+
+        int addHashKeys( long[] keys ) {
+            var first = hashKeysSize;
+            hashKeys = ensure( hashKeys, hashKeysSize + keys.length );
+            System.arraycopy( keys, 0, hashKeys, hashKeysSize, keys.length );
+            hashKeysSize += keys.length;
+            return first;
+        }
+
+        void hashChild( int slot, int child ) {
+            hashChildren[slot] = child;
+        }
+
+        /**
+         * Adds the sets of an array node and its index, the sets are filled by {@link #set(int, Tree.ArrayOperation, int, int)}.
+         *
+         * @return the first set
+         */
+        int addSets( int n, ArraySetIndex index ) {
+            var count = index.size();
+            offset[n] = sets;
+            length[n] = count;
+            value[n] = addSetIndex( index );
+            var capacity = sets + count;
+            if( capacity > setOperation.length ) {
+                capacity = Math.max( capacity, setOperation.length * 2 );
+                setOperation = Arrays.copyOf( setOperation, capacity );
+                setChild = Arrays.copyOf( setChild, capacity );
+                setCardinality = Arrays.copyOf( setCardinality, capacity );
+            }
+            var first = sets;
+            sets += count;
+            return first;
+        }
+
+        private int addSetIndex( ArraySetIndex index ) {
+            var values = index.values.length;
+            var header = setIndexSize;
+            var offsets = header + 4;
+            var postings = offsets + values + 1;
+            var notSets = postings + index.postings.length;
+
+            setIndex = ensure( setIndex, notSets + index.notSets.length );
+            setIndex[header] = setIndexValuesSize;
+            setIndex[header + 1] = values;
+            setIndex[header + 2] = notSets;
+            setIndex[header + 3] = index.notSets.length;
+            for( var v = 0; v <= values; v++ ) setIndex[offsets + v] = postings + index.offsets[v];
+            System.arraycopy( index.postings, 0, setIndex, postings, index.postings.length );
+            System.arraycopy( index.notSets, 0, setIndex, notSets, index.notSets.length );
+            setIndexSize = notSets + index.notSets.length;
+
+            setIndexValues = ensure( setIndexValues, setIndexValuesSize + values );
+            System.arraycopy( index.values, 0, setIndexValues, setIndexValuesSize, values );
+            setIndexValuesSize += values;
+
+            return header;
+        }
+
+        void set( int s, Tree.ArrayOperation operation, int cardinality, int child ) {
+            setOperation[s] = switch( operation ) {
+                case OR -> SET_OR;
+                case AND -> SET_AND;
+                case NOT -> SET_NOT;
+            };
+            setChild[s] = child;
+            setCardinality[s] = cardinality;
+        }
+
+        private static int[] ensure( int[] array, int size ) {
+            return size <= array.length ? array : Arrays.copyOf( array, Math.max( size, array.length * 2 ) );
+        }
+
+        private static long[] ensure( long[] array, int size ) {
+            return size <= array.length ? array : Arrays.copyOf( array, Math.max( size, array.length * 2 ) );
+        }
+
+        CompiledTree<T> build( List<? extends Dimension<?>> dimensions, List<Tree.PreFilter> preFilters, boolean preFilter,
+                               Selections<T> selections ) {
+            return new CompiledTree<>( dimensions, preFilters, preFilter,
+                Arrays.copyOf( kind, nodes ), Arrays.copyOf( dimension, nodes ), Arrays.copyOf( value, nodes ),
+                Arrays.copyOf( left, nodes ), Arrays.copyOf( right, nodes ), Arrays.copyOf( equal, nodes ), Arrays.copyOf( any, nodes ),
+                Arrays.copyOf( offset, nodes ), Arrays.copyOf( length, nodes ),
+                Arrays.copyOf( leafSelections, leafSelectionsSize ), Arrays.copyOf( hashChildren, hashChildrenSize ),
+                Arrays.copyOf( hashKeys, hashKeysSize ),
+                Arrays.copyOf( setOperation, sets ), Arrays.copyOf( setChild, sets ), Arrays.copyOf( setCardinality, sets ),
+                Arrays.copyOf( setIndex, setIndexSize ), Arrays.copyOf( setIndexValues, setIndexValuesSize ), selections );
+        }
+    }
+}
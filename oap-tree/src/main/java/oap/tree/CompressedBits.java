@@ -0,0 +1,334 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) Open Application Platform Authors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package oap.tree;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.stream.IntStream;
+
+import static java.util.stream.Collectors.joining;
+
+/**
+ * Roaring-style {@link Bits}: values are split by their high 16 bits into chunks, every chunk keeps
+ * its low 16 bits in the smallest of three containers:
+ * <ul>
+ *     <li>array - sorted values, up to {@link #ARRAY_MAX} of them</li>
+ *     <li>bitmap - 1024 words</li>
+ *     <li>run - sorted starts and lengths of consecutive values</li>
+ * </ul>
+ * A lookup is a binary search over the chunk keys and, for array and run containers, over the container.
+ */
+final class CompressedBits implements Bits {
+    static final int ARRAY_MAX = 4096;
+    private static final int BITMAP_WORDS = 1 << 16 >>> 6;
+
+    /**
+     * high 16 bits of the chunks, sorted
+     */
+    private final char[] keys;
+    private final Container[] containers;
+    private final int cardinality;
+
+    private CompressedBits( char[] keys, Container[] containers ) {
+        this.keys = keys;
+        this.containers = containers;
+        var cardinality = 0;
+        for( var container : containers ) cardinality += container.cardinality();
+        this.cardinality = cardinality;
+    }
+
+    static CompressedBits of( BitSet bitSet ) {
+        var keys = new char[4];
+        var containers = new Container[4];
+        var chunks = 0;
+        var i = bitSet.nextSetBit( 0 );
+        while( i >= 0 ) {
+            var high = i >>> 16;
+            var counts = count( bitSet, i );
+            if( chunks == keys.length ) {
+                keys = Arrays.copyOf( keys, chunks * 2 );
+                containers = Arrays.copyOf( containers, chunks * 2 );
+            }
+            keys[chunks] = ( char ) high;
+            containers[chunks] = container( bitSet, i, ( int ) ( counts >>> 32 ), ( int ) counts );
+            chunks++;
+            i = nextChunk( bitSet, high );
+        }
+        return new CompressedBits( Arrays.copyOf( keys, chunks ), Arrays.copyOf( containers, chunks ) );
+    }
+
+    /**
+     * @return {@link #sizeInBytes()} of {@link #of(BitSet)} without building it
+     */
+    static long sizeInBytes( BitSet bitSet ) {
+        var size = 16L + 16 + 16;
+        var i = bitSet.nextSetBit( 0 );
+        while( i >= 0 ) {
+            var counts = count( bitSet, i );
+            size += Character.BYTES + 4 + containerBytes( ( int ) ( counts >>> 32 ), ( int ) counts );
+            i = nextChunk( bitSet, i >>> 16 );
+        }
+        return size;
+    }
+
+    private static long chunkEnd( int high ) {
+        return ( long ) ( high + 1 ) << 16;
+    }
+
+    private static int nextChunk( BitSet bitSet, int high ) {
+        var end = chunkEnd( high );
+        return end > Integer.MAX_VALUE ? -1 : bitSet.nextSetBit( ( int ) end );
+    }
+
+    /**
+     * @param first the first set bit of a chunk
+     * @return number of values in the chunk in the high int, number of runs in the low one
+     */
+    private static long count( BitSet bitSet, int first ) {
+        var end = chunkEnd( first >>> 16 );
+        var size = 0L;
+        var runs = 0L;
+        var start = first;
+        while( start >= 0 && start < end ) {
+            var stop = Math.min( bitSet.nextClearBit( start ), end );
+            size += stop - start;
+            runs++;
+            start = stop < end ? bitSet.nextSetBit( ( int ) stop ) : -1;
+        }
+        return size << 32 | runs;
+    }
+
+    private static long containerBytes( int size, int runs ) {
+        return Math.min( RunContainer.sizeInBytes( runs ), size <= ARRAY_MAX ? ArrayContainer.sizeInBytes( size ) : BitmapContainer.SIZE_IN_BYTES );
+    }
+
+    private static Container container( BitSet bitSet, int first, int size, int runs ) {
+        var end = chunkEnd( first >>> 16 );
+        var runBytes = RunContainer.sizeInBytes( runs );
+        var arrayBytes = size <= ARRAY_MAX ? ArrayContainer.sizeInBytes( size ) : Long.MAX_VALUE;
+
+        if( runBytes < arrayBytes && runBytes < BitmapContainer.SIZE_IN_BYTES ) {
+            var starts = new char[runs];
+            var lengths = new char[runs];
+            var start = first;
+            for( var run = 0; run < runs; run++ ) {
+                var stop = Math.min( bitSet.nextClearBit( start ), end );
+                starts[run] = ( char ) start;
+                lengths[run] = ( char ) ( stop - start - 1 );
+                if( stop < end ) start = bitSet.nextSetBit( ( int ) stop );
+            }
+            return new RunContainer( starts, lengths, size );
+        }
+        if( arrayBytes <= BitmapContainer.SIZE_IN_BYTES ) {
+            var values = new char[size];
+            var value = first;
+            for( var i = 0; i < size; i++ ) {
+                values[i] = ( char ) value;
+                if( value < Integer.MAX_VALUE ) value = bitSet.nextSetBit( value + 1 );
+            }
+            return new ArrayContainer( values );
+        }
+
+        var words = new long[BITMAP_WORDS];
+        var value = first;
+        for( var i = 0; i < size; i++ ) {
+            words[( char ) value >>> 6] |= 1L << value;
+            if( value < Integer.MAX_VALUE ) value = bitSet.nextSetBit( value + 1 );
+        }
+        return new BitmapContainer( words, size );
+    }
+
+    @Override
+    public boolean get( long bit ) {
+        if( bit < 0 || bit > Integer.MAX_VALUE ) return false;
+        var chunk = Arrays.binarySearch( keys, ( char ) ( bit >>> 16 ) );
+        return chunk >= 0 && containers[chunk].contains( ( char ) bit );
+    }
+
+    @Override
+    public int cardinality() {
+        return cardinality;
+    }
+
+    @Override
+    public int length() {
+        if( keys.length == 0 ) return 0;
+        var last = keys.length - 1;
+        return ( keys[last] << 16 | containers[last].last() ) + 1;
+    }
+
+    @Override
+    public IntStream stream() {
+        return IntStream.range( 0, keys.length ).flatMap( c -> containers[c].stream().map( low -> keys[c] << 16 | low ) );
+    }
+
+    @Override
+    public long sizeInBytes() {
+        var size = 16L + 16 + keys.length * Character.BYTES + 16 + keys.length * 4L;
+        for( var container : containers ) size += container.sizeInBytes();
+        return size;
+    }
+
+    @Override
+    public String toString() {
+        return stream().mapToObj( String::valueOf ).collect( joining( ", ", "{", "}" ) );
+    }
+
+    private interface Container {
+        boolean contains( char low );
+
+        int cardinality();
+
+        int last();
+
+        IntStream stream();
+
+        long sizeInBytes();
+    }
+
+    private static final class ArrayContainer implements Container {
+        private final char[] values;
+
+        private ArrayContainer( char[] values ) {
+            this.values = values;
+        }
+
+        @Override
+        public boolean contains( char low ) {
+            return Arrays.binarySearch( values, low ) >= 0;
+        }
+
+        @Override
+        public int cardinality() {
+            return values.length;
+        }
+
+        @Override
+        public int last() {
+            return values[values.length - 1];
+        }
+
+        @Override
+        public IntStream stream() {
+            return IntStream.range( 0, values.length ).map( i -> values[i] );
+        }
+
+        @Override
+        public long sizeInBytes() {
+            return sizeInBytes( values.length );
+        }
+
+        private static long sizeInBytes( int size ) {
+            return 16 + 16 + ( long ) size * Character.BYTES;
+        }
+    }
+
+    private static final class BitmapContainer implements Container {
+        private static final long SIZE_IN_BYTES = 16 + 16 + ( long ) BITMAP_WORDS * Long.BYTES;
+
+        private final long[] words;
+        private final int cardinality;
+
+        private BitmapContainer( long[] words, int cardinality ) {
+            this.words = words;
+            this.cardinality = cardinality;
+        }
+
+        @Override
+        public boolean contains( char low ) {
+            return ( words[low >>> 6] & ( 1L << low ) ) != 0;
+        }
+
+        @Override
+        public int cardinality() {
+            return cardinality;
+        }
+
+        @Override
+        public int last() {
+            for( var i = words.length - 1; i >= 0; i-- ) {
+                if( words[i] != 0 ) return i * Long.SIZE + Long.SIZE - 1 - Long.numberOfLeadingZeros( words[i] );
+            }
+            return -1;
+        }
+
+        @Override
+        public IntStream stream() {
+            return BitSet.valueOf( words ).stream();
+        }
+
+        @Override
+        public long sizeInBytes() {
+            return SIZE_IN_BYTES;
+        }
+    }
+
+    /**
+     * run {@code i} holds {@code starts[i] .. starts[i] + lengths[i]}, inclusive
+     */
+    private static final class RunContainer implements Container {
+        private final char[] starts;
+        private final char[] lengths;
+        private final int cardinality;
+
+        private RunContainer( char[] starts, char[] lengths, int cardinality ) {
+            this.starts = starts;
+            this.lengths = lengths;
+            this.cardinality = cardinality;
+        }
+
+        @Override
+        public boolean contains( char low ) {
+            var run = Arrays.binarySearch( starts, low );
+            if( run >= 0 ) return true;
+            run = -run - 2;
+            return run >= 0 && low <= starts[run] + lengths[run];
+        }
+
+        @Override
+        public int cardinality() {
+            return cardinality;
+        }
+
+        @Override
+        public int last() {
+            var run = starts.length - 1;
+            return starts[run] + lengths[run];
+        }
+
+        @Override
+        public IntStream stream() {
+            return IntStream.range( 0, starts.length ).flatMap( r -> IntStream.rangeClosed( starts[r], starts[r] + lengths[r] ) );
+        }
+
+        @Override
+        public long sizeInBytes() {
+            return sizeInBytes( starts.length );
+        }
+
+        private static long sizeInBytes( int runs ) {
+            return 16 + 16 + 16 + 16 + runs * 2L * Character.BYTES;
+        }
+    }
+}
@@ -0,0 +1,87 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) Open Application Platform Authors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package oap.tree;
+
+import lombok.EqualsAndHashCode;
+
+import java.util.BitSet;
+import java.util.stream.IntStream;
+
+/**
+ * {@link Bits} as plain words, {@code bit / 64} is the index of the word.
+ */
+@EqualsAndHashCode
+final class DenseBits implements Bits {
+    private final long[] words;
+    private final int cardinality;
+
+    DenseBits( long[] words ) {
+        this.words = words;
+        var cardinality = 0;
+        for( var word : words ) cardinality += Long.bitCount( word );
+        this.cardinality = cardinality;
+    }
+
+    @Override
+    public boolean get( long bit ) {
+        if( bit < 0 ) return false;
+        var word = bit >>> 6;
+        return word < words.length && ( words[( int ) word] & ( 1L << bit ) ) != 0;
+    }
+
+    @Override
+    public int cardinality() {
+        return cardinality;
+    }
+
+    @Override
+    public int length() {
+        for( var i = words.length - 1; i >= 0; i-- ) {
+            if( words[i] != 0 ) return i * Long.SIZE + Long.SIZE - Long.numberOfLeadingZeros( words[i] );
+        }
+        return 0;
+    }
+
+    @Override
+    public IntStream stream() {
+        return BitSet.valueOf( words ).stream();
+    }
+
+    @Override
+    public long sizeInBytes() {
+        return 16 + 16 + ( long ) words.length * Long.BYTES;
+    }
+
+    /**
+     * @return {@link #sizeInBytes()} of {@code new DenseBits( bitSet.toLongArray() )} without building it
+     */
+    static long sizeInBytes( BitSet bitSet ) {
+        return 16 + 16 + ( ( bitSet.length() + ( long ) Long.SIZE - 1 ) >>> 6 ) * Long.BYTES;
+    }
+
+    @Override
+    public String toString() {
+        return BitSet.valueOf( words ).toString();
+    }
+}
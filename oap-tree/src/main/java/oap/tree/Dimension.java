@@ -34,6 +34,7 @@ import java.util.Arrays;
 import java.util.Collection;
 import java.util.List;
 import java.util.Optional;
+import java.util.RandomAccess;
 
 @SuppressWarnings( { "checkstyle:AbstractClassName", "checkstyle:MethodName" } )
 @EqualsAndHashCode
@@ -235,10 +236,7 @@ public abstract class Dimension<Self extends Dimension<Self>> {
                 res[i] = _getOrDefault( item );
                 i++;
             }
-//            if( res.length > 1 ) {
-//                Arrays.sort( res );
-//            }
-            return res;
+            return normalized( res );
         }
         if( value instanceof int[] arr ) {
             if( arr.length == 0 ) return emptyValue;
@@ -246,25 +244,108 @@ public abstract class Dimension<Self extends Dimension<Self>> {
             for( var i = 0; i < arr.length; i++ ) {
                 res[i] = arr[i];
             }
-//            if( res.length > 1 ) {
-//                Arrays.sort( res );
-//            }
-            return res;
+            return normalized( res );
         }
         if( value instanceof long[] arr ) {
             if( arr.length == 0 ) return emptyValue;
 
             var res = Arrays.copyOf( arr, arr.length );
 
-//            if( res.length > 1 ) {
-//                Arrays.sort( res );
-//            }
-
-            return res;
+            return normalized( res );
         }
         return new long[] { _getOrDefault( value ) };
     }
 
+    /**
+     * Allocation-free variant of {@link #getOrNullValue(Object)}, encodes the value into the caller-owned buffer.
+     *
+     * @return number of encoded values ({@code 0} means any) or, if the buffer is too small, the required size negated
+     */
+    public final int getOrNullValue( Object value, long[] buffer ) {
+        if( value == null ) return copyOf( nullAsLong, buffer );
+
+        if( value instanceof Optional<?> optValue ) {
+            return optValue.isPresent() ? getOrNullValue( optValue.get(), buffer ) : copyOf( nullAsLong, buffer );
+        }
+        if( value instanceof Collection<?> list ) {
+            var size = list.size();
+            if( size == 0 ) return copyOf( nullAsLong, buffer );
+            if( size > buffer.length ) return -size;
+            var i = 0;
+            if( list instanceof List<?> l && l instanceof RandomAccess ) {
+                for( ; i < size; i++ ) buffer[i] = _getOrDefault( l.get( i ) );
+            } else {
+                for( var item : list ) buffer[i++] = _getOrDefault( item );
+            }
+            return normalize( buffer, size );
+        }
+        if( value instanceof int[] arr ) {
+            if( arr.length == 0 ) return copyOf( nullAsLong, buffer );
+            if( arr.length > buffer.length ) return -arr.length;
+            for( var i = 0; i < arr.length; i++ ) buffer[i] = arr[i];
+            return normalize( buffer, arr.length );
+        }
+        if( value instanceof long[] arr ) {
+            if( arr.length == 0 ) return copyOf( nullAsLong, buffer );
+            var length = copyOf( arr, buffer );
+            return length < 0 ? length : normalize( buffer, length );
+        }
+        if( buffer.length == 0 ) return -1;
+        buffer[0] = _getOrDefault( value );
+        return 1;
+    }
+
+    /**
+     * Multi-value queries of set operations ({@code CONTAINS}, {@code CONTAINS_ALL} and arrays) are sorted
+     * and deduplicated once encoded, so the traversal can split them between the children by binary search.
+     */
+    final boolean isSetQuery() {
+        return operationType == null || operationType == OperationType.CONTAINS || operationType == OperationType.CONTAINS_ALL;
+    }
+
+    private long[] normalized( long[] values ) {
+        var length = normalize( values, values.length );
+        return length == values.length ? values : Arrays.copyOf( values, length );
+    }
+
+    /**
+     * @return number of distinct values, sorted in place, if this is a set query
+     */
+    private int normalize( long[] values, int length ) {
+        if( length < 2 || !isSetQuery() ) return length;
+
+        var sorted = true;
+        for( var i = 1; i < length && sorted; i++ ) sorted = values[i - 1] < values[i];
+        if( sorted ) return length;
+
+        Arrays.sort( values, 0, length );
+        var distinct = 1;
+        for( var i = 1; i < length; i++ ) {
+            if( values[i] != values[distinct - 1] ) values[distinct++] = values[i];
+        }
+        return distinct;
+    }
+
+    /**
+     * @return index of the first value {@code >= key} in the sorted range, {@code to} if there is none
+     */
+    static int lowerBound( long[] values, int from, int to, long key ) {
+        var low = from;
+        var high = to;
+        while( low < high ) {
+            var mid = ( low + high ) >>> 1;
+            if( values[mid] < key ) low = mid + 1;
+            else high = mid;
+        }
+        return low;
+    }
+
+    private static int copyOf( long[] values, long[] buffer ) {
+        if( values.length > buffer.length ) return -values.length;
+        System.arraycopy( values, 0, buffer, 0, values.length );
+        return values.length;
+    }
+
     protected abstract long _getOrDefault( Object value );
 
     @SuppressWarnings( "unchecked" )
@@ -274,10 +355,15 @@ public abstract class Dimension<Self extends Dimension<Self>> {
         return bitSet;
     }
 
-    @SuppressWarnings( "checkstyle:UnnecessaryParentheses" )
     public final int direction( long[] qValue, long nodeValue ) {
-        var qValueLength = qValue.length;
+        return direction( qValue, qValue.length, nodeValue );
+    }
 
+    /**
+     * @param qValueLength number of meaningful values in {@code qValue}, the rest of the buffer is ignored
+     */
+    @SuppressWarnings( "checkstyle:UnnecessaryParentheses" )
+    public final int direction( long[] qValue, int qValueLength, long nodeValue ) {
         var head = qValue[0];
         switch( operationType ) {
             case CONTAINS, CONTAINS_ALL:
@@ -291,8 +377,8 @@ public abstract class Dimension<Self extends Dimension<Self>> {
                 if( last > nodeValue ) v |= Direction.RIGHT;
                 if( head < nodeValue ) v |= Direction.LEFT;
 
-                for( long item : qValue ) {
-                    if( item == nodeValue ) {
+                for( var i = 0; i < qValueLength; i++ ) {
+                    if( qValue[i] == nodeValue ) {
                         v |= Direction.EQUAL;
                         break;
                     }
@@ -0,0 +1,221 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) Open Application Platform Authors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package oap.tree;
+
+import oap.util.Lists;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static oap.tree.Consts.ANY_AS_ARRAY;
+
+/**
+ * Delta of an {@link IncrementalTree}: the current rows of the edited selections, encoded once and matched
+ * row by row with the same semantics as a tree built from them. An edit replaces the rows of one selection
+ * in place, a find reads every row, so it is meant for the few selections edited between two merges.
+ * <p>
+ * The rows are encoded with clones of the dimensions, the strings of the edits only grow these dictionaries.
+ */
+final class EditedRows<T> {
+    private final List<? extends Dimension<?>> dimensions;
+    private final ConcurrentHashMap<T, Edit<T>> edits = new ConcurrentHashMap<>();
+
+    EditedRows( List<? extends Dimension<?>> dimensions ) {
+        this.dimensions = Lists.map( dimensions, Dimension::cloneAndReset );
+    }
+
+    /**
+     * Replaces the rows of the selection, an empty list removes it from the tree.
+     */
+    void put( T selection, List<Tree.ValueData<T>> rows ) {
+        var kept = Tree.fixEmptyAsFailed( dimensions, rows );
+        Tree.init( dimensions, kept );
+        var encoded = new Row[kept.size()];
+        for( var i = 0; i < encoded.length; i++ ) encoded[i] = encode( kept.get( i ) );
+        edits.put( selection, new Edit<>( rows, encoded ) );
+    }
+
+    /**
+     * @return the rows of the edited selection, null if it is not edited
+     */
+    List<Tree.ValueData<T>> get( T selection ) {
+        var edit = edits.get( selection );
+        return edit != null ? edit.rows : null;
+    }
+
+    boolean isEmpty() {
+        return edits.isEmpty();
+    }
+
+    int size() {
+        return edits.size();
+    }
+
+    /**
+     * @return the rows of every edited selection, the same list instances as {@link #get(Object)} returns
+     */
+    Map<T, List<Tree.ValueData<T>>> rows() {
+        var result = new HashMap<T, List<Tree.ValueData<T>>>( edits.size() );
+        edits.forEach( ( selection, edit ) -> result.put( selection, edit.rows ) );
+        return result;
+    }
+
+    /**
+     * @return true if the selection is edited, its rows of the main tree are hidden
+     */
+    boolean contains( T selection ) {
+        return edits.containsKey( selection );
+    }
+
+    /**
+     * Adds the edited selections matching the query to the result.
+     *
+     * @param context scratch, overwritten
+     */
+    void find( List<?> query, QueryContext<?> context, Set<T> result ) {
+        context.encode( dimensions, query );
+
+        edits.forEach( ( selection, edit ) -> {
+            if( matches( edit, context ) ) result.add( selection );
+        } );
+    }
+
+    /**
+     * @param context scratch, overwritten
+     * @return true if an edited selection matches the query
+     */
+    boolean exists( List<?> query, QueryContext<?> context ) {
+        context.encode( dimensions, query );
+
+        for( var edit : edits.values() ) {
+            if( matches( edit, context ) ) return true;
+        }
+        return false;
+    }
+
+    private boolean matches( Edit<T> edit, QueryContext<?> context ) {
+        for( var row : edit.encoded ) {
+            if( matches( row, context ) ) return true;
+        }
+        return false;
+    }
+
+    private Row encode( Tree.ValueData<T> data ) {
+        var count = dimensions.size();
+        var row = new Row( count );
+        for( var d = 0; d < count; d++ ) {
+            var dimension = dimensions.get( d );
+            var value = data.data.get( d );
+            if( dimension.operationType == null ) {
+                if( value instanceof Tree.Array array && !array.isEmpty() ) {
+                    row.sets[d] = Bits.of( dimension.toBitSet( array ) );
+                    row.operations[d] = array.operation;
+                } else {
+                    row.any[d] = true;
+                }
+            } else {
+                var encoded = dimension.getOrDefault( value, ANY_AS_ARRAY );
+                if( encoded == ANY_AS_ARRAY ) row.any[d] = true;
+                else row.values[d] = encoded[0];
+            }
+        }
+        return row;
+    }
+
+    /**
+     * A row matches if every dimension either has no value or takes the path of a tree node holding it.
+     */
+    private boolean matches( Row row, QueryContext<?> context ) {
+        for( var d = 0; d < row.values.length; d++ ) {
+            if( row.any[d] ) continue;
+            var qLength = context.lengths[d];
+            if( qLength == 0 ) return false;
+
+            var qValue = context.query[d];
+            var dimension = dimensions.get( d );
+            var value = row.values[d];
+            if( row.sets[d] != null ) {
+                if( !matches( row.sets[d], row.operations[d], qValue, qLength ) ) return false;
+            } else if( dimension.isSetQuery() ) {
+                var position = Dimension.lowerBound( qValue, 0, qLength, value );
+                if( position == qLength || qValue[position] != value ) return false;
+            } else if( ( dimension.direction( qValue, qLength, value ) & Dimension.Direction.EQUAL ) == 0 ) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean matches( Bits set, Tree.ArrayOperation operation, long[] qValue, int qLength ) {
+        var hits = 0;
+        for( var i = 0; i < qLength; i++ ) {
+            if( qValue[i] < 0 || !set.get( qValue[i] ) ) continue;
+            if( operation == Tree.ArrayOperation.OR ) return true;
+            if( operation == Tree.ArrayOperation.NOT ) return false;
+            hits++;
+        }
+        return switch( operation ) {
+            case OR -> false;
+            case AND -> hits == set.cardinality();
+            case NOT -> true;
+        };
+    }
+
+    private static final class Edit<T> {
+        private final List<Tree.ValueData<T>> rows;
+        private final Row[] encoded;
+
+        private Edit( List<Tree.ValueData<T>> rows, Row[] encoded ) {
+            this.rows = rows;
+            this.encoded = encoded;
+        }
+    }
+
+    private static final class Row {
+        /**
+         * [dimension] first encoded value of a non-array dimension
+         */
+        private final long[] values;
+        /**
+         * [dimension] no value, matches any query
+         */
+        private final boolean[] any;
+        /**
+         * [dimension] values of a non-empty array, null for the other dimensions
+         */
+        private final Bits[] sets;
+        private final Tree.ArrayOperation[] operations;
+
+        private Row( int dimensions ) {
+            values = new long[dimensions];
+            any = new boolean[dimensions];
+            sets = new Bits[dimensions];
+            operations = new Tree.ArrayOperation[dimensions];
+        }
+    }
+}
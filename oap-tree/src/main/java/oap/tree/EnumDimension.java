@@ -44,6 +44,10 @@ public class EnumDimension<T extends Enum<?>> extends Dimension<EnumDimension<T>
         this.ordinalToSorted = ordinalToSorted;
     }
 
+    String[] names() {
+        return sortedToName;
+    }
+
     @Override
     public String toString( long value ) {
         return sortedToName[( int ) value];
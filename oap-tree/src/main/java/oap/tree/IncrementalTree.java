@@ -0,0 +1,223 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) Open Application Platform Authors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package oap.tree;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executor;
+
+/**
+ * Tree taking edits of single selections without a full rebuild: an immutable main tree plus a small delta.
+ * <p>
+ * An edit replaces all the rows of a selection. The edited selections hide their rows in the main tree and
+ * their current rows are kept in a mutable delta, see {@link EditedRows}, so the edit is visible to the next find
+ * and costs the rows of the selection only. Once the delta holds {@code mergeThreshold} selections, a new main tree
+ * is built in the background with the edits applied, edits made during the merge stay in the delta.
+ * <p>
+ * Finds never block and see every selection either before or after a concurrent edit of it, edits are serialized.
+ *
+ * @see TreeBuilder#loadIncremental(List, int, Executor)
+ */
+@Slf4j
+public final class IncrementalTree<T> {
+    private final TreeBuilder<T> builder;
+    private final List<? extends Dimension<?>> dimensions;
+    private final int mergeThreshold;
+    private final Executor executor;
+    private volatile State<T> state;
+    private boolean merging;
+
+    IncrementalTree( TreeBuilder<T> builder, List<? extends Dimension<?>> dimensions, List<Tree.ValueData<T>> data,
+                     int mergeThreshold, Executor executor ) {
+        this.builder = builder;
+        this.dimensions = dimensions;
+        this.mergeThreshold = mergeThreshold;
+        this.executor = executor;
+        var rows = new HashMap<T, List<Tree.ValueData<T>>>();
+        for( var row : data ) rows.computeIfAbsent( row.value, s -> new ArrayList<>() ).add( row );
+        this.state = new State<>( rows, builder.load( data ), new EditedRows<>( dimensions ) );
+    }
+
+    public QueryContext<T> newQueryContext() {
+        return state.main.newQueryContext();
+    }
+
+    public Set<T> find( List<?> query ) {
+        return find( query, newQueryContext() );
+    }
+
+    /**
+     * @param context reusable by the queries of one thread, see {@link #newQueryContext()}
+     */
+    public Set<T> find( List<?> query, QueryContext<T> context ) {
+        var state = this.state;
+        if( state.delta.isEmpty() ) return state.main.find( query, context ).toSet();
+
+        var delta = state.delta;
+        var found = new HashSet<T>();
+        state.main.find( query, context, true, ( id, selection ) -> {
+            if( !delta.contains( selection ) ) found.add( selection );
+        } );
+        delta.find( query, context, found );
+        return found;
+    }
+
+    public boolean exists( List<?> query ) {
+        return exists( query, newQueryContext() );
+    }
+
+    /**
+     * The main tree is checked first: a selection edited in between is then seen either before or after the edit.
+     *
+     * @param context reusable by the queries of one thread, see {@link #newQueryContext()}
+     */
+    public boolean exists( List<?> query, QueryContext<T> context ) {
+        var state = this.state;
+        if( state.delta.isEmpty() ) return !state.main.find( query, 1, context ).isEmpty();
+
+        var delta = state.delta;
+        return state.main.exists( query, context, selection -> !delta.contains( selection ) )
+            || delta.exists( query, context );
+    }
+
+    /**
+     * Adds the row to the rows of its selection.
+     */
+    public synchronized void add( Tree.ValueData<T> row ) {
+        var rows = new ArrayList<>( rows( row.value ) );
+        rows.add( row );
+        edit( row.value, rows );
+    }
+
+    /**
+     * Replaces all the rows of the selection.
+     */
+    public synchronized void update( T selection, List<Tree.ValueData<T>> rows ) {
+        for( var row : rows ) {
+            if( !selection.equals( row.value ) )
+                throw new IllegalArgumentException( "row " + row + " is not of selection " + selection );
+        }
+        edit( selection, List.copyOf( rows ) );
+    }
+
+    public synchronized void remove( T selection ) {
+        edit( selection, List.of() );
+    }
+
+    /**
+     * @return number of selections edited since the main tree was built
+     */
+    public int getDeltaSize() {
+        return state.delta.size();
+    }
+
+    /**
+     * @return the immutable tree the edits are merged into
+     */
+    public Tree<T> getMain() {
+        return state.main;
+    }
+
+    /**
+     * Merges the delta into a new main tree in the background, unless a merge is already running.
+     */
+    public synchronized void merge() {
+        if( merging || state.delta.isEmpty() ) return;
+
+        merging = true;
+        var merged = state;
+        var edits = merged.delta.rows();
+        try {
+            executor.execute( () -> merge( merged, edits ) );
+        } catch( RuntimeException e ) {
+            merging = false;
+            log.error( "cannot schedule the merge of {} edits", edits.size(), e );
+        }
+    }
+
+    private List<Tree.ValueData<T>> rows( T selection ) {
+        var state = this.state;
+        var rows = state.delta.get( selection );
+        if( rows != null ) return rows;
+        return state.rows.getOrDefault( selection, List.of() );
+    }
+
+    private void edit( T selection, List<Tree.ValueData<T>> rows ) {
+        var state = this.state;
+        state.delta.put( selection, rows );
+
+        if( state.delta.size() >= mergeThreshold ) merge();
+    }
+
+    private void merge( State<T> merged, Map<T, List<Tree.ValueData<T>>> edits ) {
+        try {
+            var rows = new HashMap<>( merged.rows );
+            edits.forEach( ( selection, selectionRows ) -> {
+                if( selectionRows.isEmpty() ) rows.remove( selection );
+                else rows.put( selection, selectionRows );
+            } );
+            var data = new ArrayList<Tree.ValueData<T>>();
+            for( var selectionRows : rows.values() ) data.addAll( selectionRows );
+            var main = builder.load( data, merged.main );
+
+            synchronized( this ) {
+                var delta = new EditedRows<T>( dimensions );
+                state.delta.rows().forEach( ( selection, selectionRows ) -> {
+                    if( edits.get( selection ) != selectionRows ) delta.put( selection, selectionRows );
+                } );
+                state = new State<>( rows, main, delta );
+            }
+        } catch( RuntimeException e ) {
+            log.error( "merge of {} edits failed", edits.size(), e );
+        } finally {
+            synchronized( this ) {
+                merging = false;
+            }
+        }
+    }
+
+    private static final class State<T> {
+        /**
+         * rows of the main tree by selection
+         */
+        private final Map<T, List<Tree.ValueData<T>>> rows;
+        private final Tree<T> main;
+        /**
+         * current rows of the edited selections, an empty list for a removed one, updated in place by the edits
+         */
+        private final EditedRows<T> delta;
+
+        private State( Map<T, List<Tree.ValueData<T>>> rows, Tree<T> main, EditedRows<T> delta ) {
+            this.rows = rows;
+            this.main = main;
+            this.delta = delta;
+        }
+    }
+}
@@ -0,0 +1,109 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) Open Application Platform Authors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package oap.tree;
+
+import lombok.ToString;
+import oap.tree.TreeStatistics.NodeType;
+
+import static oap.tree.TreeStatistics.NodeType.BINARY;
+import static oap.tree.TreeStatistics.NodeType.DENSE_HASH;
+import static oap.tree.TreeStatistics.NodeType.SORTED_HASH;
+
+/**
+ * Build-time estimate used to choose the node type for a split on a {@code CONTAINS} / {@code CONTAINS_ALL}
+ * dimension: a chain of binary nodes, a hash node with a table indexed by value or a hash node with sorted values.
+ * <p>
+ * The cost of a candidate is the expected lookup cost of one query value plus its estimated size:
+ * {@code probes * probeCost + hops * hopCost + bytes * byteCost}. A probe reads a slot of a primitive array,
+ * a hop follows a reference to another node object and is usually a cache miss.
+ *
+ * @see TreeBuilder#withCostModel(NodeCostModel)
+ */
+@ToString
+public final class NodeCostModel {
+    public static final NodeCostModel DEFAULT = new NodeCostModel( 1, 4, 1.0 / 64 );
+
+    static final int NODE_BYTES = 48;
+    static final int HASH_NODE_BYTES = 32;
+    static final int ARRAY_HEADER_BYTES = 16;
+    static final int REFERENCE_BYTES = 4;
+
+    private final double probeCost;
+    private final double hopCost;
+    private final double byteCost;
+
+    /**
+     * @param probeCost cost of reading an array slot
+     * @param hopCost   cost of following a reference to a child node
+     * @param byteCost  cost of a byte of the node, 1/64 makes a cache line worth a probe
+     */
+    public NodeCostModel( double probeCost, double hopCost, double byteCost ) {
+        this.probeCost = probeCost;
+        this.hopCost = hopCost;
+        this.byteCost = byteCost;
+    }
+
+    /**
+     * @param sortedUnique distinct values of the split dimension, sorted
+     * @return the cheapest node type
+     */
+    NodeType choose( long[] sortedUnique ) {
+        var type = cost( SORTED_HASH, sortedUnique ) < cost( BINARY, sortedUnique ) ? SORTED_HASH : BINARY;
+        if( canBeDense( sortedUnique ) && cost( DENSE_HASH, sortedUnique ) <= cost( type, sortedUnique ) ) return DENSE_HASH;
+        return type;
+    }
+
+    double cost( NodeType type, long[] sortedUnique ) {
+        var depth = log2( sortedUnique.length + 1 );
+        var bytes = bytes( type, sortedUnique );
+        return switch( type ) {
+            case DENSE_HASH -> 2 * probeCost + bytes * byteCost;
+            case SORTED_HASH -> ( 1 + depth ) * probeCost + bytes * byteCost;
+            case BINARY -> depth * hopCost + bytes * byteCost;
+            default -> throw new IllegalArgumentException( "not a split node type " + type );
+        };
+    }
+
+    /**
+     * Approximate heap size of the node over the values, children excluded. A binary split is a chain of
+     * a node per value.
+     */
+    static long bytes( NodeType type, long[] sortedUnique ) {
+        var n = sortedUnique.length;
+        return switch( type ) {
+            case DENSE_HASH -> HASH_NODE_BYTES + ARRAY_HEADER_BYTES + ( sortedUnique[n - 1] + 1 ) * REFERENCE_BYTES;
+            case SORTED_HASH -> HASH_NODE_BYTES + 2L * ARRAY_HEADER_BYTES + ( long ) n * ( REFERENCE_BYTES + Long.BYTES );
+            case BINARY -> ( long ) n * NODE_BYTES;
+            default -> throw new IllegalArgumentException( "not a split node type " + type );
+        };
+    }
+
+    static boolean canBeDense( long[] sortedUnique ) {
+        return sortedUnique[0] >= 0 && sortedUnique[sortedUnique.length - 1] < Integer.MAX_VALUE - 8;
+    }
+
+    private static double log2( int n ) {
+        return Math.log( n ) / Math.log( 2 );
+    }
+}
@@ -0,0 +1,362 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) Open Application Platform Authors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package oap.tree;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.Closeable;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static oap.tree.TreeSnapshot.ANY;
+import static oap.tree.TreeSnapshot.DIMENSION;
+import static oap.tree.TreeSnapshot.EQUAL;
+import static oap.tree.TreeSnapshot.HASH_CHILDREN;
+import static oap.tree.TreeSnapshot.HASH_KEYS;
+import static oap.tree.TreeSnapshot.KIND;
+import static oap.tree.TreeSnapshot.LEAF_SELECTIONS;
+import static oap.tree.TreeSnapshot.LEFT;
+import static oap.tree.TreeSnapshot.LENGTH;
+import static oap.tree.TreeSnapshot.OFFSET;
+import static oap.tree.TreeSnapshot.RIGHT;
+import static oap.tree.TreeSnapshot.SET_CARDINALITY;
+import static oap.tree.TreeSnapshot.SET_CHILD;
+import static oap.tree.TreeSnapshot.SET_INDEX;
+import static oap.tree.TreeSnapshot.SET_INDEX_VALUES;
+import static oap.tree.TreeSnapshot.SET_OPERATION;
+import static oap.tree.TreeSnapshot.VALUE;
+
+/**
+ * {@link CompiledTree} whose columns (nodes, hash slots, array sets, leaf selection ids) live outside of the heap,
+ * either in direct buffers ({@link #of(CompiledTree)}) or in a memory-mapped snapshot
+ * ({@link TreeSnapshot#map(java.nio.file.Path, List, SelectionCodec)}). Only the selections stay on the heap.
+ * <p>
+ * Off-heap memory is released by {@link #close()} once the queries running on the tree finish,
+ * or when the tree becomes unreachable if it is never closed.
+ */
+@Slf4j
+public final class OffHeapTree<T> implements Closeable {
+    private static final MethodHandle INVOKE_CLEANER = invokeCleaner();
+    private static final int CLOSED = Integer.MIN_VALUE;
+
+    final List<? extends Dimension<?>> dimensions;
+    final List<Tree.PreFilter> preFilters;
+    final boolean preFilter;
+
+    private final int nodeCount;
+    private final long offHeapSize;
+    /**
+     * the buffers as allocated or mapped, only those can be released
+     */
+    private final ByteBuffer[] sections;
+    private final Columns columns;
+    /**
+     * number of running queries, with the {@link #CLOSED} bit set once closed
+     */
+    private final AtomicInteger readers = new AtomicInteger();
+    private volatile boolean released;
+
+    private final Selections<T> selections;
+
+    OffHeapTree( List<? extends Dimension<?>> dimensions, List<Tree.PreFilter> preFilters, boolean preFilter,
+                 ByteBuffer[] sections, Selections<T> selections ) {
+        this.dimensions = dimensions;
+        this.preFilters = preFilters;
+        this.preFilter = preFilter;
+        this.selections = selections;
+        this.sections = sections;
+
+        columns = new Columns( sections );
+        nodeCount = sections[KIND].remaining();
+        var size = 0L;
+        for( var i = 0; i <= SET_INDEX_VALUES; i++ ) size += sections[i].capacity();
+        offHeapSize = size;
+    }
+
+    /**
+     * Copies the columns of the compiled tree into direct memory, the compiled tree can be dropped afterwards.
+     */
+    public static <T> OffHeapTree<T> of( CompiledTree<T> tree ) {
+        return new OffHeapTree<>( tree.dimensions, tree.preFilters, tree.preFilter,
+            TreeSnapshot.columns( tree, true ), tree.selections );
+    }
+
+    public int getNodeCount() {
+        return nodeCount;
+    }
+
+    public int getSelectionCount() {
+        return selections.size();
+    }
+
+    /**
+     * @see Tree#getSelection(int)
+     */
+    public T getSelection( int id ) {
+        return selections.get( id );
+    }
+
+    /**
+     * @return bytes held outside of the heap by the node columns
+     */
+    public long getOffHeapSize() {
+        return offHeapSize;
+    }
+
+    public QueryContext<T> newQueryContext() {
+        return new QueryContext<>( dimensions.size() );
+    }
+
+    public Set<T> find( List<?> query ) {
+        return find( query, newQueryContext() ).toSet();
+    }
+
+    /**
+     * @see Tree#find(List, QueryContext)
+     * @throws IllegalStateException if the tree is closed
+     */
+    public QueryContext<T> find( List<?> query, QueryContext<T> context ) {
+        acquire();
+        try {
+            context.clear( selections );
+            context.encode( dimensions, query );
+
+            if( preFilter && !Tree.isSuccess( preFilters, context ) ) return context;
+
+            columns.find( dimensions, context );
+            return context;
+        } finally {
+            if( readers.decrementAndGet() == CLOSED ) release();
+        }
+    }
+
+    private void acquire() {
+        while( true ) {
+            var state = readers.get();
+            if( ( state & CLOSED ) != 0 ) throw new IllegalStateException( "tree is closed" );
+            if( readers.compareAndSet( state, state + 1 ) ) return;
+        }
+    }
+
+    /**
+     * Unmaps or frees the columns instead of waiting for the garbage collector. Queries started after the close fail,
+     * the memory is released by the last of the queries still running, or right away if there are none.
+     */
+    @Override
+    public void close() {
+        while( true ) {
+            var state = readers.get();
+            if( ( state & CLOSED ) != 0 ) return;
+            if( readers.compareAndSet( state, state | CLOSED ) ) {
+                if( state == 0 ) release();
+                return;
+            }
+        }
+    }
+
+    /**
+     * @return true once the off-heap memory is released, see {@link #close()}
+     */
+    boolean isReleased() {
+        return released;
+    }
+
+    private void release() {
+        released = true;
+        if( INVOKE_CLEANER == null ) return;
+
+        for( var section : sections ) {
+            if( section == null || !section.isDirect() ) continue;
+            try {
+                INVOKE_CLEANER.invokeExact( section );
+            } catch( Throwable e ) {
+                log.warn( "cannot release {} off-heap bytes: {}", section.capacity(), e.toString() );
+            }
+        }
+    }
+
+    /**
+     * {@code Unsafe.invokeCleaner(ByteBuffer)}, null if the runtime does not provide it.
+     */
+    private static MethodHandle invokeCleaner() {
+        try {
+            var unsafeClass = Class.forName( "sun.misc.Unsafe" );
+            var theUnsafe = unsafeClass.getDeclaredField( "theUnsafe" );
+            theUnsafe.setAccessible( true );
+            return MethodHandles.lookup()
+                .findVirtual( unsafeClass, "invokeCleaner", MethodType.methodType( void.class, ByteBuffer.class ) )
+                .bindTo( theUnsafe.get( null ) );
+        } catch( ReflectiveOperationException | RuntimeException e ) {
+            log.warn( "off-heap trees will be released by the garbage collector only: {}", e.toString() );
+            return null;
+        }
+    }
+
+    private static final class Columns extends TreeColumns {
+        private final ByteBuffer kind;
+        private final IntBuffer dimension;
+        private final LongBuffer value;
+        private final IntBuffer left;
+        private final IntBuffer right;
+        private final IntBuffer equal;
+        private final IntBuffer any;
+        private final IntBuffer offset;
+        private final IntBuffer length;
+        private final IntBuffer leafSelections;
+        private final IntBuffer hashChildren;
+        private final LongBuffer hashKeys;
+        private final ByteBuffer setOperation;
+        private final IntBuffer setChild;
+        private final IntBuffer setCardinality;
+        private final IntBuffer setIndex;
+        private final LongBuffer setIndexValues;
+
+        private Columns( ByteBuffer[] sections ) {
+            kind = sections[KIND].duplicate();
+            dimension = ints( sections[DIMENSION] );
+            value = longs( sections[VALUE] );
+            left = ints( sections[LEFT] );
+            right = ints( sections[RIGHT] );
+            equal = ints( sections[EQUAL] );
+            any = ints( sections[ANY] );
+            offset = ints( sections[OFFSET] );
+            length = ints( sections[LENGTH] );
+            leafSelections = ints( sections[LEAF_SELECTIONS] );
+            hashChildren = ints( sections[HASH_CHILDREN] );
+            hashKeys = longs( sections[HASH_KEYS] );
+            setOperation = sections[SET_OPERATION].duplicate();
+            setChild = ints( sections[SET_CHILD] );
+            setCardinality = ints( sections[SET_CARDINALITY] );
+            setIndex = ints( sections[SET_INDEX] );
+            setIndexValues = longs( sections[SET_INDEX_VALUES] );
+        }
+
+        private static IntBuffer ints( ByteBuffer buffer ) {
+            return buffer.duplicate().order( ByteOrder.LITTLE_ENDIAN ).asIntBuffer();
+        }
+
+        private static LongBuffer longs( ByteBuffer buffer ) {
+            return buffer.duplicate().order( ByteOrder.LITTLE_ENDIAN ).asLongBuffer();
+        }
+
+        @Override
+        int nodeCount() {
+            return kind.remaining();
+        }
+
+        @Override
+        byte kind( int n ) {
+            return kind.get( n );
+        }
+
+        @Override
+        int dimension( int n ) {
+            return dimension.get( n );
+        }
+
+        @Override
+        long value( int n ) {
+            return value.get( n );
+        }
+
+        @Override
+        int left( int n ) {
+            return left.get( n );
+        }
+
+        @Override
+        int right( int n ) {
+            return right.get( n );
+        }
+
+        @Override
+        int equal( int n ) {
+            return equal.get( n );
+        }
+
+        @Override
+        int any( int n ) {
+            return any.get( n );
+        }
+
+        @Override
+        int offset( int n ) {
+            return offset.get( n );
+        }
+
+        @Override
+        int length( int n ) {
+            return length.get( n );
+        }
+
+        @Override
+        int leafSelection( int i ) {
+            return leafSelections.get( i );
+        }
+
+        @Override
+        int hashChild( int i ) {
+            return hashChildren.get( i );
+        }
+
+        @Override
+        long hashKey( int i ) {
+            return hashKeys.get( i );
+        }
+
+        @Override
+        byte setOperation( int s ) {
+            return setOperation.get( s );
+        }
+
+        @Override
+        int setChild( int s ) {
+            return setChild.get( s );
+        }
+
+        @Override
+        int setCardinality( int s ) {
+            return setCardinality.get( s );
+        }
+
+        @Override
+        int setIndex( int i ) {
+            return setIndex.get( i );
+        }
+
+        @Override
+        long setIndexValue( int i ) {
+            return setIndexValues.get( i );
+        }
+    }
+}
@@ -0,0 +1,233 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) Open Application Platform Authors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package oap.tree;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import io.micrometer.core.instrument.Meter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Metrics;
+import io.micrometer.core.instrument.binder.cache.GuavaCacheMetrics;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.function.ToIntFunction;
+import java.util.stream.IntStream;
+
+/**
+ * Cache keyed by the encoded values of some dimensions of a query: the whole query -> selection ids
+ * ({@link TreeBuilder#withCache(String, long)}) or the prefix dimensions -> traversal frontier
+ * ({@link TreeBuilder#withPrefixCache(String, long, String...)}).
+ * <p>
+ * One cache is shared by all trees loaded by a builder: every load takes the cache over and invalidates it,
+ * entries put by the trees loaded before are never returned, so the meters keep describing the live tree.
+ * <p>
+ * The weight of an entry is the number of encoded query values plus the number of ids or nodes it holds,
+ * so the bound is roughly the cache size in 8 byte words. Hit, miss and eviction metrics are published as
+ * the standard micrometer cache meters tagged with the cache name, of the last cache created with that name.
+ * <p>
+ * A lookup probes the cache with the reusable key of the query context, the key is copied on insert only.
+ */
+final class QueryCache<V> {
+    /**
+     * meters registered for the caches by name, see {@link #monitor(Cache, String)}
+     */
+    private static final Map<String, List<Meter>> METERS = new HashMap<>();
+
+    private final Cache<Key, Result<V>> cache;
+    private final int[] dimensions;
+    /**
+     * 0..dimensions.length - 1, the dimensions of a copied key
+     */
+    private final int[] positions;
+    private volatile Object owner;
+
+    /**
+     * @param dimensions indexes of the dimensions making the key
+     * @param size       number of ids or nodes held by a value
+     */
+    QueryCache( String name, long maximumWeight, int[] dimensions, ToIntFunction<V> size ) {
+        this.dimensions = dimensions;
+        this.positions = IntStream.range( 0, dimensions.length ).toArray();
+        cache = CacheBuilder.newBuilder()
+            .maximumWeight( maximumWeight )
+            .weigher( ( Key key, Result<V> result ) -> key.weight + size.applyAsInt( result.value ) )
+            .recordStats()
+            .build();
+
+        monitor( cache, name );
+    }
+
+    /**
+     * Binds the cache meters of the name to this cache. The meters registered for a cache created before with
+     * the same name are removed, the registry would keep them and that cache otherwise. Meters of the name
+     * registered by anyone else are left alone.
+     */
+    private static synchronized void monitor( Cache<?, ?> cache, String name ) {
+        var registry = Metrics.globalRegistry;
+        var previous = METERS.remove( name );
+        if( previous != null ) previous.forEach( registry::remove );
+
+        var existing = new HashSet<Meter.Id>();
+        for( var meter : meters( registry, name ) ) existing.add( meter.getId() );
+        GuavaCacheMetrics.monitor( registry, cache, name );
+
+        var registered = new ArrayList<Meter>();
+        for( var meter : meters( registry, name ) ) {
+            if( !existing.contains( meter.getId() ) ) registered.add( meter );
+        }
+        METERS.put( name, registered );
+    }
+
+    private static List<Meter> meters( MeterRegistry registry, String name ) {
+        var result = new ArrayList<Meter>();
+        for( var meter : registry.getMeters() ) {
+            var id = meter.getId();
+            if( id.getName().startsWith( "cache." ) && name.equals( id.getTag( "cache" ) ) ) result.add( meter );
+        }
+        return result;
+    }
+
+    /**
+     * Makes the tree the only one served by the cache.
+     */
+    void reset( Object owner ) {
+        this.owner = owner;
+        cache.invalidateAll();
+    }
+
+    boolean isOwner( Object tree ) {
+        return owner == tree;
+    }
+
+    boolean isKeyDimension( int dimension ) {
+        for( var d : dimensions ) {
+            if( d == dimension ) return true;
+        }
+        return false;
+    }
+
+    /**
+     * Looks the encoded query of the context up without copying it.
+     */
+    V get( Object tree, QueryContext<?> context ) {
+        var result = cache.getIfPresent( context.cacheKey.probe( context.query, context.lengths, dimensions ) );
+        return result != null && result.owner == tree ? result.value : null;
+    }
+
+    /**
+     * Copies the encoded query out of the context.
+     */
+    void put( Object tree, QueryContext<?> context, V value ) {
+        if( owner != tree ) return;
+        var key = context.cacheKey.probe( context.query, context.lengths, dimensions ).copy( positions );
+        cache.put( key, new Result<>( tree, value ) );
+    }
+
+    long size() {
+        return cache.size();
+    }
+
+    /**
+     * Values of the key dimensions: {@code query[dimensions[i]]}, {@code lengths[dimensions[i]]} of them.
+     * A probe points to the buffers of a query context, a copy owns trimmed arrays.
+     */
+    static final class Key {
+        private long[][] query;
+        private int[] lengths;
+        private int[] dimensions;
+        private int hash;
+        private int weight;
+
+        Key probe( long[][] query, int[] lengths, int[] dimensions ) {
+            this.query = query;
+            this.lengths = lengths;
+            this.dimensions = dimensions;
+            var hash = 1;
+            var weight = 1;
+            for( var d : dimensions ) {
+                var values = query[d];
+                var length = lengths[d];
+                for( var i = 0; i < length; i++ ) hash = 31 * hash + Long.hashCode( values[i] );
+                hash = 31 * hash + length;
+                weight += length;
+            }
+            this.hash = hash;
+            this.weight = weight;
+            return this;
+        }
+
+        /**
+         * @param positions 0..dimensions.length - 1
+         */
+        private Key copy( int[] positions ) {
+            var count = dimensions.length;
+            var key = new Key();
+            key.query = new long[count][];
+            key.lengths = new int[count];
+            key.dimensions = positions;
+            key.hash = hash;
+            key.weight = weight;
+            for( var i = 0; i < count; i++ ) {
+                var d = dimensions[i];
+                key.query[i] = Arrays.copyOf( query[d], lengths[d] );
+                key.lengths[i] = lengths[d];
+            }
+            return key;
+        }
+
+        @Override
+        public boolean equals( Object o ) {
+            if( this == o ) return true;
+            if( !( o instanceof Key key ) || hash != key.hash || dimensions.length != key.dimensions.length ) return false;
+
+            for( var i = 0; i < dimensions.length; i++ ) {
+                var d = dimensions[i];
+                var keyD = key.dimensions[i];
+                if( !Arrays.equals( query[d], 0, lengths[d], key.query[keyD], 0, key.lengths[keyD] ) ) return false;
+            }
+            return true;
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+
+    private static final class Result<V> {
+        private final Object owner;
+        private final V value;
+
+        private Result( Object owner, V value ) {
+            this.owner = owner;
+            this.value = value;
+        }
+    }
+}
@@ -0,0 +1,296 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) Open Application Platform Authors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package oap.tree;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.function.Consumer;
+
+/**
+ * Caller-owned, reusable state of a non-tracing {@link Tree#find(List, QueryContext)}:
+ * encoded query buffers, traversal stack and result collector.
+ * <p>
+ * Buffers only grow, so once warmed up a query does not allocate. The context is not thread-safe,
+ * keep one per thread. Selections stay available until the next find.
+ * <p>
+ * Selections are collected as dense ids and deduplicated with a bitmap, no {@code hashCode}/{@code equals} is called.
+ * <p>
+ * The traversal is iterative, {@link #getMaxStackDepth()} reports the deepest stack seen so far,
+ * which can be used to size the stack of new contexts up front.
+ */
+public final class QueryContext<T> {
+    long[][] query;
+    int[] lengths;
+
+    Object[] stack;
+    int stackSize;
+
+    int[] nodeStack;
+    int nodeStackSize;
+
+    /**
+     * Part of the sorted query values of the node dimension the popped node has to look at,
+     * {@code [from, to)}, {@code to < 0} means all of them. Set by {@link #pop()} and {@link #popNode()}.
+     */
+    int from;
+    int to;
+    private long[] ranges;
+    private long[] nodeRanges;
+
+    private int maxStackDepth;
+
+    /**
+     * scratch of {@link ArraySetIndex#match(long[], int, int[], int[])}, the matching sets are in {@code setMatches}
+     */
+    int[] setHits = new int[0];
+    int[] setMatches = new int[0];
+
+    /**
+     * reusable lookup key of {@link QueryCache}
+     */
+    final QueryCache.Key cacheKey = new QueryCache.Key();
+
+    private Selections<T> selections = Selections.empty();
+    private int[] ids = new int[16];
+    private int size;
+    private long[] seen = new long[1];
+
+    QueryContext( int dimensions ) {
+        this( dimensions, 64 );
+    }
+
+    QueryContext( int dimensions, int stackCapacity ) {
+        stack = new Object[Math.max( stackCapacity, 1 )];
+        nodeStack = new int[Math.max( stackCapacity, 1 )];
+        ranges = new long[stack.length];
+        nodeRanges = new long[nodeStack.length];
+        query = new long[dimensions][];
+        lengths = new int[dimensions];
+        for( var i = 0; i < dimensions; i++ ) query[i] = new long[8];
+    }
+
+    void encode( List<? extends Dimension<?>> dimensions, List<?> query ) {
+        var count = dimensions.size();
+        if( this.query.length < count ) {
+            var old = this.query.length;
+            this.query = Arrays.copyOf( this.query, count );
+            this.lengths = new int[count];
+            for( var i = old; i < count; i++ ) this.query[i] = new long[8];
+        }
+
+        for( var i = 0; i < count; i++ ) {
+            var value = query.get( i );
+            var dimension = dimensions.get( i );
+            var length = dimension.getOrNullValue( value, this.query[i] );
+            if( length < 0 ) {
+                this.query[i] = new long[Math.max( -length, this.query[i].length * 2 )];
+                length = dimension.getOrNullValue( value, this.query[i] );
+            }
+            lengths[i] = length;
+        }
+    }
+
+    /**
+     * @return number of matching sets, their indexes are the first entries of {@link #setMatches}
+     */
+    int match( ArraySetIndex index, long[] qValue, int qLength ) {
+        ensureSetScratch( index.size() );
+        return index.match( qValue, qLength, setHits, setMatches );
+    }
+
+    void ensureSetScratch( int sets ) {
+        if( setHits.length < sets ) {
+            setHits = new int[sets];
+            setMatches = new int[sets];
+        }
+    }
+
+    void clear( Selections<T> selections ) {
+        for( var i = 0; i < size; i++ ) seen[ids[i] >>> 6] = 0;
+        size = 0;
+
+        this.selections = selections;
+        var words = ( selections.size() + 63 ) >>> 6;
+        if( seen.length < words ) seen = new long[words];
+        Arrays.fill( stack, 0, stackSize, null );
+        stackSize = 0;
+        nodeStackSize = 0;
+    }
+
+    void push( Object node ) {
+        push( node, 0, -1 );
+    }
+
+    void push( Object node, int from, int to ) {
+        if( node == null ) return;
+        if( stackSize == stack.length ) {
+            stack = Arrays.copyOf( stack, stackSize * 2 );
+            ranges = Arrays.copyOf( ranges, stackSize * 2 );
+        }
+        ranges[stackSize] = range( from, to );
+        stack[stackSize++] = node;
+        if( stackSize > maxStackDepth ) maxStackDepth = stackSize;
+    }
+
+    Object pop() {
+        var node = stack[--stackSize];
+        stack[stackSize] = null;
+        from = ( int ) ( ranges[stackSize] >> 32 );
+        to = ( int ) ranges[stackSize];
+        return node;
+    }
+
+    void pushNode( int node ) {
+        pushNode( node, 0, -1 );
+    }
+
+    void pushNode( int node, int from, int to ) {
+        if( node < 0 ) return;
+        if( nodeStackSize == nodeStack.length ) {
+            nodeStack = Arrays.copyOf( nodeStack, nodeStackSize * 2 );
+            nodeRanges = Arrays.copyOf( nodeRanges, nodeStackSize * 2 );
+        }
+        nodeRanges[nodeStackSize] = range( from, to );
+        nodeStack[nodeStackSize++] = node;
+        if( nodeStackSize > maxStackDepth ) maxStackDepth = nodeStackSize;
+    }
+
+    int popNode() {
+        var node = nodeStack[--nodeStackSize];
+        from = ( int ) ( nodeRanges[nodeStackSize] >> 32 );
+        to = ( int ) nodeRanges[nodeStackSize];
+        return node;
+    }
+
+    private static long range( int from, int to ) {
+        return ( ( long ) from << 32 ) | ( to & 0xFFFFFFFFL );
+    }
+
+    void addAll( int[] ids ) {
+        for( var id : ids ) add( id );
+    }
+
+    void addAll( int[] ids, int limit ) {
+        for( var i = 0; i < ids.length && size < limit; i++ ) add( ids[i] );
+    }
+
+    /**
+     * @return false if the selection was already found
+     */
+    boolean add( int id ) {
+        var word = id >>> 6;
+        var bit = 1L << id;
+        if( ( seen[word] & bit ) != 0 ) return false;
+
+        seen[word] |= bit;
+        if( size == ids.length ) ids = Arrays.copyOf( ids, size * 2 );
+        ids[size++] = id;
+        return true;
+    }
+
+    /**
+     * @return the largest number of pending nodes the traversal had to keep since the context was created
+     */
+    public int getMaxStackDepth() {
+        return maxStackDepth;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public T get( int index ) {
+        return selections.get( getId( index ) );
+    }
+
+    /**
+     * @return dense id of the index-th selection found, see {@link Tree#getSelection(int)}
+     */
+    public int getId( int index ) {
+        if( index >= size ) throw new IndexOutOfBoundsException( "Index " + index + " out of bounds for length " + size );
+        return ids[index];
+    }
+
+    /**
+     * Unboxed access for trees whose selections are {@link Integer} or {@link Long}.
+     *
+     * @throws IllegalStateException if selections are not numeric
+     */
+    public long getLong( int index ) {
+        var id = getId( index );
+        if( selections.longs == null ) throw new IllegalStateException( "selections are not integers or longs" );
+        return selections.longs[id];
+    }
+
+    public boolean containsId( int id ) {
+        var word = id >>> 6;
+        return id >= 0 && word < seen.length && ( seen[word] & ( 1L << id ) ) != 0;
+    }
+
+    public void forEach( Consumer<? super T> action ) {
+        for( var i = 0; i < size; i++ ) action.accept( selections.get( ids[i] ) );
+    }
+
+    /**
+     * @return ids of the selections found, in ascending order, allocates
+     */
+    public int[] toIds() {
+        var result = Arrays.copyOf( ids, size );
+        Arrays.sort( result );
+        return result;
+    }
+
+    /**
+     * @return selections found as a bitmap over their ids, allocates
+     */
+    public BitSet toBitSet() {
+        return BitSet.valueOf( seen );
+    }
+
+    /**
+     * @see #getLong(int)
+     */
+    public long[] toLongArray() {
+        var result = new long[size];
+        for( var i = 0; i < size; i++ ) result[i] = getLong( i );
+        return result;
+    }
+
+    /**
+     * Copies the selections into a new set, allocates.
+     */
+    public Set<T> toSet() {
+        var result = new HashSet<T>( Math.max( 16, size * 2 ) );
+        forEach( result::add );
+        return result;
+    }
+}
@@ -0,0 +1,79 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) Open Application Platform Authors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package oap.tree;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Binary form of a selection in a {@link TreeSnapshot}.
+ */
+public interface SelectionCodec<T> {
+    SelectionCodec<String> STRING = new SelectionCodec<>() {
+        @Override
+        public byte[] encode( String selection ) {
+            return selection.getBytes( StandardCharsets.UTF_8 );
+        }
+
+        @Override
+        public String decode( ByteBuffer buffer, int length ) {
+            var bytes = new byte[length];
+            buffer.get( bytes );
+            return new String( bytes, StandardCharsets.UTF_8 );
+        }
+    };
+
+    SelectionCodec<Long> LONG = new SelectionCodec<>() {
+        @Override
+        public byte[] encode( Long selection ) {
+            return ByteBuffer.allocate( Long.BYTES ).putLong( selection ).array();
+        }
+
+        @Override
+        public Long decode( ByteBuffer buffer, int length ) {
+            return buffer.getLong();
+        }
+    };
+
+    SelectionCodec<Integer> INTEGER = new SelectionCodec<>() {
+        @Override
+        public byte[] encode( Integer selection ) {
+            return ByteBuffer.allocate( Integer.BYTES ).putInt( selection ).array();
+        }
+
+        @Override
+        public Integer decode( ByteBuffer buffer, int length ) {
+            return buffer.getInt();
+        }
+    };
+
+    byte[] encode( T selection );
+
+    /**
+     * @param buffer positioned at the first byte of the selection
+     * @param length number of bytes written by {@link #encode(Object)}
+     */
+    T decode( ByteBuffer buffer, int length );
+}
@@ -0,0 +1,70 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) Open Application Platform Authors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package oap.tree;
+
+/**
+ * Dense id -> selection table, ids are assigned at load time in order of first appearance.
+ * <p>
+ * When every selection is an {@link Integer} or a {@link Long}, the values are also kept as a primitive column
+ * so callers using numeric ids can read results without unboxing.
+ */
+final class Selections<T> {
+    static final Selections<?> EMPTY = new Selections<>( new Object[0] );
+
+    final Object[] values;
+    /**
+     * primitive copy of {@link #values}, null if any selection is not an integer or a long
+     */
+    final long[] longs;
+
+    Selections( Object[] values ) {
+        this.values = values;
+        this.longs = toLongs( values );
+    }
+
+    @SuppressWarnings( "unchecked" )
+    static <T> Selections<T> empty() {
+        return ( Selections<T> ) EMPTY;
+    }
+
+    private static long[] toLongs( Object[] values ) {
+        var longs = new long[values.length];
+        for( var i = 0; i < values.length; i++ ) {
+            if( values[i] instanceof Long l ) longs[i] = l;
+            else if( values[i] instanceof Integer v ) longs[i] = v;
+            else return null;
+        }
+        return longs;
+    }
+
+    int size() {
+        return values.length;
+    }
+
+    @SuppressWarnings( "unchecked" )
+    T get( int id ) {
+        return ( T ) values[id];
+    }
+}
@@ -0,0 +1,81 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) Open Application Platform Authors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package oap.tree;
+
+import oap.util.StringBits;
+import oap.util.Strings;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Append-only string -> id dictionary of a {@link StringDimension}, ids start at 1, {@link StringBits#UNKNOWN}
+ * is returned for a value not in the dictionary.
+ * <p>
+ * Lookups do not lock, so a dictionary kept across loads ({@link TreeBuilder#withStableDictionaries(double)})
+ * keeps serving the queries of the previous tree while the next one appends to it.
+ */
+final class StringDictionary {
+    private final ConcurrentHashMap<String, Long> ids;
+    private volatile String[] values;
+    private volatile int size;
+
+    StringDictionary( int initialCapacity, float loadFactor ) {
+        ids = new ConcurrentHashMap<>( initialCapacity, loadFactor );
+        values = new String[Math.max( initialCapacity, 16 )];
+    }
+
+    long get( String value ) {
+        var id = ids.get( value );
+        return id != null ? id : StringBits.UNKNOWN;
+    }
+
+    synchronized long intern( String value ) {
+        var id = ids.get( value );
+        if( id != null ) return id;
+
+        if( size == values.length ) values = Arrays.copyOf( values, size * 2 );
+        values[size] = value;
+        ids.put( value, ( long ) size + 1 );
+        size++;
+        return size;
+    }
+
+    String valueOf( long id ) {
+        return id > 0 && id <= size ? values[( int ) id - 1] : Strings.UNKNOWN;
+    }
+
+    int size() {
+        return size;
+    }
+
+    /**
+     * @return values in id order
+     */
+    List<String> values() {
+        var size = this.size;
+        return Arrays.asList( Arrays.copyOf( values, size ) );
+    }
+}
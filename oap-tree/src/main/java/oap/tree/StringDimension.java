@@ -3,8 +3,15 @@ package oap.tree;
 import lombok.NonNull;
 import oap.util.StringBits;
 
+import java.util.BitSet;
+import java.util.List;
+
 public class StringDimension extends Dimension<StringDimension> {
-    private final StringBits bits;
+    private final StringDictionary bits;
+    /**
+     * ids of the values passed to {@link #init(Object)}
+     */
+    private final BitSet used = new BitSet();
     private final int initialCapacity;
     private final float loadFactor;
 
@@ -14,17 +21,18 @@ public class StringDimension extends Dimension<StringDimension> {
         this.initialCapacity = initialCapacity;
         this.loadFactor = loadFactor;
 
-        bits = new StringBits( initialCapacity, loadFactor );
+        bits = new StringDictionary( initialCapacity, loadFactor );
     }
 
     private StringDimension( @NonNull String name, OperationType operationType, int priority, long[] nullAsLong,
-                             boolean emptyAsFailed, boolean preFilter, String groupName, int initialCapacity, float loadFactor ) {
+                             boolean emptyAsFailed, boolean preFilter, String groupName, int initialCapacity, float loadFactor,
+                             StringDictionary bits ) {
         super( name, operationType, priority, nullAsLong, emptyAsFailed, preFilter, groupName );
 
         this.initialCapacity = initialCapacity;
         this.loadFactor = loadFactor;
 
-        bits = new StringBits( initialCapacity, loadFactor );
+        this.bits = bits;
     }
 
     @Override
@@ -34,7 +42,31 @@ public class StringDimension extends Dimension<StringDimension> {
 
     @Override
     protected void _init( Object value ) {
-        bits.computeIfAbsent( ( String ) value );
+        var str = ( String ) value;
+        var id = bits.get( str );
+        used.set( ( int ) ( id == StringBits.UNKNOWN ? intern( str ) : id ) );
+    }
+
+    long intern( String value ) {
+        return bits.intern( value );
+    }
+
+    /**
+     * @return dictionary values in the order they were interned
+     */
+    List<String> dictionary() {
+        return bits.values();
+    }
+
+    /**
+     * @return share of the dictionary values passed to {@link #init(Object)}
+     */
+    double liveRatio() {
+        return bits.size() == 0 ? 1 : ( double ) used.cardinality() / bits.size();
+    }
+
+    long idOf( String value ) {
+        return bits.get( value );
     }
 
     @Override
@@ -48,6 +80,15 @@ public class StringDimension extends Dimension<StringDimension> {
     @Override
     public StringDimension cloneAndReset() {
         return new StringDimension( name, operationType, priority, nullAsLong, emptyAsFailed, preFilter, groupName,
-            initialCapacity, loadFactor );
+            initialCapacity, loadFactor, new StringDictionary( initialCapacity, loadFactor ) );
+    }
+
+    /**
+     * Same as {@link #cloneAndReset()}, but the clone appends to the dictionary of this dimension,
+     * the values already in it keep their ids.
+     */
+    StringDimension cloneAndKeepDictionary() {
+        return new StringDimension( name, operationType, priority, nullAsLong, emptyAsFailed, preFilter, groupName,
+            initialCapacity, loadFactor, bits );
     }
 }
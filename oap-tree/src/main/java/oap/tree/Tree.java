@@ -29,6 +29,7 @@ import lombok.EqualsAndHashCode;
 import lombok.ToString;
 import lombok.extern.slf4j.Slf4j;
 import oap.tree.Dimension.OperationType;
+import oap.tree.TreeStatistics.NodeType;
 import oap.util.Lists;
 import oap.util.Pair;
 import oap.util.Stream;
@@ -36,22 +37,30 @@ import oap.util.Strings;
 import org.apache.commons.lang3.ArrayUtils;
 import org.jetbrains.annotations.NotNull;
 
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.BitSet;
 import java.util.Collection;
 import java.util.Collections;
-import java.util.Comparator;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.IdentityHashMap;
 import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
+import java.util.Queue;
 import java.util.Set;
 import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
 import java.util.function.Predicate;
+import java.util.function.Supplier;
 import java.util.stream.IntStream;
 import java.util.stream.LongStream;
 
@@ -71,15 +80,46 @@ import static oap.util.Pair.__;
 
 @Slf4j
 public class Tree<T> {
+    static final int SPARSE_HASH_RATIO = 4;
+
     private final int maxTraceListCount;
     private final ArrayList<PreFilter> preFilters = new ArrayList<>();
-    private final List<? extends Dimension<?>> dimensions;
+    final List<? extends Dimension<?>> dimensions;
     private final double hashFillFactor;
-    TreeNode<T> root = new Leaf<>( emptyList() );
+    private Selections<T> selections = Selections.empty();
+    TreeNode<T> root = new Leaf<>( new int[0] );
     private boolean preFilter;
     private long nodeCount = 0;
     private long leafCount = 0;
     public boolean fullDebug;
+    /**
+     * set by {@link TreeBuilder}, the tree can be queried concurrently and must not change anymore
+     */
+    private volatile boolean published;
+    QueryCache<int[]> cache;
+    QueryCache<Object[]> prefixCache;
+    NodeCostModel costModel;
+    /**
+     * parallel build, subtrees of less than {@link #parallelThreshold} selections are built sequentially
+     */
+    ForkJoinPool pool;
+    int parallelThreshold;
+    /**
+     * {@link CardinalitySketch} precision of the unique counts, 0 for exact counts
+     */
+    int uniqueCountPrecision;
+    /**
+     * structural sharing: subtrees of at least {@link #sharingThreshold} rows are kept by fingerprint in
+     * {@link #subtrees} and reused by the next tree built from this one, 0 if disabled
+     */
+    int sharingThreshold;
+    private Map<BuildColumns.Fingerprint, TreeNode<T>> subtrees;
+    /**
+     * subtrees of the previous tree during the build and the ones reused from it
+     */
+    private Map<BuildColumns.Fingerprint, TreeNode<T>> previousSubtrees;
+    private Queue<TreeNode<T>> sharedRoots;
+    private TreeStatistics statistics = new TreeStatistics();
 
     Tree( List<? extends Dimension<?>> dimensions, boolean preFilter ) {
         this( dimensions, 0.25, 10, preFilter );
@@ -122,7 +162,11 @@ public class Tree<T> {
         return preFilter;
     }
 
+    /**
+     * @throws IllegalStateException if the tree is published
+     */
     public void setPreFilter( boolean preFilter ) {
+        checkNotPublished();
         this.preFilter = preFilter;
     }
 
@@ -134,10 +178,28 @@ public class Tree<T> {
         return nodeCount;
     }
 
+    public int getSelectionCount() {
+        return selections.size();
+    }
+
+    /**
+     * @param id dense selection id, see {@link QueryContext#getId(int)}
+     */
+    public T getSelection( int id ) {
+        return selections.get( id );
+    }
+
     public long getLeafCount() {
         return leafCount;
     }
 
+    /**
+     * Node types chosen by the last {@link #load(List)}.
+     */
+    public TreeStatistics getStatistics() {
+        return statistics;
+    }
+
     public TreeArrayStatistic getArrayStatistics() {
         var tas = new TreeArrayStatistic();
 
@@ -150,29 +212,79 @@ public class Tree<T> {
         if( root == null ) return;
 
         if( root instanceof Tree.Node ) {
-            var sets = ( ( Node ) root ).sets;
+            var sets = ( ( Node<T> ) root ).sets;
 
             tas.update( ArrayOperation.OR, Lists.count( sets, s -> s.operation == ArrayOperation.OR ) );
             tas.update( ArrayOperation.AND, Lists.count( sets, s -> s.operation == ArrayOperation.AND ) );
             tas.update( ArrayOperation.NOT, Lists.count( sets, s -> s.operation == ArrayOperation.NOT ) );
 
-            sets.forEach( s -> tas.updateSize( s.operation, s.bitSet.stream().count() ) );
+            sets.forEach( s -> tas.updateSize( s.operation, s.bitSet.cardinality() ) );
 
-            arrayStatistics( ( ( Node ) root ).any, tas );
-            arrayStatistics( ( ( Node ) root ).left, tas );
-            arrayStatistics( ( ( Node ) root ).right, tas );
-            arrayStatistics( ( ( Node ) root ).equal, tas );
+            arrayStatistics( ( ( Node<T> ) root ).any, tas );
+            arrayStatistics( ( ( Node<T> ) root ).left, tas );
+            arrayStatistics( ( ( Node<T> ) root ).right, tas );
+            arrayStatistics( ( ( Node<T> ) root ).equal, tas );
 
             sets.forEach( s -> arrayStatistics( s.equal, tas ) );
         }
     }
 
-    @SuppressWarnings( "checkstyle:UnnecessaryParentheses" )
+    /**
+     * @throws IllegalStateException if the tree is published, load a new one with the {@link TreeBuilder} instead
+     */
     public void load( List<ValueData<T>> data ) {
-        var newData = fixEmptyAsFailed( data );
-        init( newData );
+        load( data, null );
+        takeCaches();
+    }
+
+    void publish() {
+        published = true;
+    }
+
+    private void checkNotPublished() {
+        if( published ) throw new IllegalStateException( "published tree is immutable" );
+    }
+
+    /**
+     * Makes this tree the only one served by its caches.
+     */
+    void takeCaches() {
+        if( cache != null ) cache.reset( this );
+        if( prefixCache != null ) prefixCache.reset( this );
+    }
+
+    /**
+     * The caches stay with their owner, see {@link #takeCaches()}.
+     *
+     * @param previous tree loaded before by the same builder, its subtrees built from the same rows are reused
+     *                 if {@link #sharingThreshold} is set
+     */
+    @SuppressWarnings( "checkstyle:UnnecessaryParentheses" )
+    void load( List<ValueData<T>> data, Tree<T> previous ) {
+        checkNotPublished();
+        var newData = fixEmptyAsFailed( dimensions, data );
+        init( dimensions, newData );
+        statistics = new TreeStatistics();
         var uniqueCount = getUniqueCount( newData );
-        root = toNode( newData, uniqueCount, new BitSet( dimensions.size() ) );
+
+        var rowSelections = new int[newData.size()];
+        var shared = sharingThreshold > 0 && previous != null && previous.subtrees != null
+            && internSelections( newData, previous.selections, rowSelections );
+        if( !shared ) internSelections( newData, Selections.empty(), rowSelections );
+
+        var columns = new BuildColumns( dimensions, newData, rowSelections );
+        if( sharingThreshold > 0 ) {
+            columns.fingerprints( dimensions );
+            subtrees = new ConcurrentHashMap<>();
+            previousSubtrees = shared ? previous.subtrees : Map.of();
+            sharedRoots = new ConcurrentLinkedQueue<>();
+        }
+        root = pool != null
+            ? pool.invoke( ForkJoinTask.adapt( () -> toNode( columns, 0, columns.size, uniqueCount, new BitSet( dimensions.size() ) ) ) )
+            : toNode( columns, 0, columns.size, uniqueCount, new BitSet( dimensions.size() ) );
+        if( shared ) keepSharedSubtrees();
+        previousSubtrees = null;
+        sharedRoots = null;
 
         updateCount( root );
 
@@ -217,7 +329,10 @@ public class Tree<T> {
         }
     }
 
-    private List<ValueData<T>> fixEmptyAsFailed( List<ValueData<T>> data ) {
+    /**
+     * @return the rows without a value in any of the {@link Dimension#emptyAsFailed} dimensions
+     */
+    static <T> List<ValueData<T>> fixEmptyAsFailed( List<? extends Dimension<?>> dimensions, List<ValueData<T>> data ) {
         if( Lists.find2( dimensions, d -> d.emptyAsFailed ) == null ) return data;
 
         var res = new ArrayList<ValueData<T>>( data.size() );
@@ -238,14 +353,85 @@ public class Tree<T> {
         return res;
     }
 
+    /**
+     * Assigns selection ids in order of first appearance after the ids of the previous selections,
+     * so the subtrees of the previous tree keep their leaves.
+     *
+     * @return false if more than half of the previous selections are gone, the ids are not assigned
+     */
+    private boolean internSelections( List<ValueData<T>> data, Selections<T> previous, int[] rowSelections ) {
+        var selectionIds = new HashMap<T, Integer>();
+        var values = new ArrayList<T>();
+        for( var id = 0; id < previous.size(); id++ ) {
+            values.add( previous.get( id ) );
+            selectionIds.put( previous.get( id ), id );
+        }
+
+        var live = new BitSet( previous.size() );
+        for( var row = 0; row < rowSelections.length; row++ ) {
+            rowSelections[row] = selectionIds.computeIfAbsent( data.get( row ).value, v -> {
+                values.add( v );
+                return values.size() - 1;
+            } );
+            if( rowSelections[row] < previous.size() ) live.set( rowSelections[row] );
+        }
+        if( live.cardinality() * 2 < previous.size() ) return false;
+
+        selections = new Selections<>( values.toArray() );
+        return true;
+    }
+
+    /**
+     * The reused subtrees keep the fingerprints of their own subtrees for the next tree.
+     */
+    private void keepSharedSubtrees() {
+        var fingerprints = new IdentityHashMap<TreeNode<T>, BuildColumns.Fingerprint>();
+        previousSubtrees.forEach( ( fingerprint, node ) -> fingerprints.put( node, fingerprint ) );
+
+        var stack = new ArrayDeque<TreeNode<T>>( sharedRoots );
+        while( !stack.isEmpty() ) {
+            var node = stack.pop();
+            var fingerprint = fingerprints.get( node );
+            if( fingerprint != null ) subtrees.put( fingerprint, node );
+
+            if( node instanceof Tree.Node ) {
+                var n = ( Node<T> ) node;
+                push( stack, n.any, n.left, n.right, n.equal );
+                for( var set : n.sets ) push( stack, set.equal );
+            } else if( node instanceof Tree.HashNode ) {
+                var n = ( HashNode<T> ) node;
+                push( stack, n.any );
+                push( stack, n.hash );
+            }
+        }
+    }
+
+    @SafeVarargs
+    private static <T> void push( ArrayDeque<TreeNode<T>> stack, TreeNode<T>... nodes ) {
+        for( var node : nodes ) {
+            if( node != null ) stack.push( node );
+        }
+    }
+
     private long[] getUniqueCount( List<ValueData<T>> data ) {
         final long[] longs = new long[dimensions.size()];
 
-
-        for( int i = 0; i < longs.length; i++ ) {
-            int finalI = i;
-            longs[i] = data.stream().map( d -> d.data.get( finalI ) ).distinct().count();
+        if( uniqueCountPrecision > 0 ) {
+            var sketches = new CardinalitySketch[longs.length];
+            for( int i = 0; i < longs.length; i++ ) sketches[i] = new CardinalitySketch( uniqueCountPrecision );
+            for( var d : data ) {
+                for( int i = 0; i < longs.length; i++ ) sketches[i].add( d.data.get( i ) );
+            }
+            for( int i = 0; i < longs.length; i++ ) longs[i] = Math.max( sketches[i].estimate(), 1 );
+        } else {
+            for( int i = 0; i < longs.length; i++ ) {
+                int finalI = i;
+                longs[i] = data.stream().map( d -> d.data.get( finalI ) ).distinct().count();
+            }
         }
+
+        for( int i = 0; i < longs.length; i++ ) statistics.uniqueCount.put( dimensions.get( i ).name, longs[i] );
+        statistics.uniqueCountEstimated = uniqueCountPrecision > 0;
         return longs;
     }
 
@@ -254,7 +440,7 @@ public class Tree<T> {
 
         if( node instanceof Tree.Node ) {
             nodeCount++;
-            final Node n = ( Node ) node;
+            final Node<T> n = ( Node<T> ) node;
             updateCount( n.any );
             updateCount( n.left );
             updateCount( n.right );
@@ -265,7 +451,10 @@ public class Tree<T> {
         }
     }
 
-    private void init( List<ValueData<T>> data ) {
+    /**
+     * Passes the values of the rows to {@link Dimension#init(Object)}.
+     */
+    static void init( List<? extends Dimension<?>> dimensions, List<? extends ValueData<?>> data ) {
         for( int i = 0; i < dimensions.size(); i++ ) {
             var p = dimensions.get( i );
 
@@ -286,103 +475,156 @@ public class Tree<T> {
         }
     }
 
-    @SuppressWarnings( "unchecked" )
-    private TreeNode<T> toNode( List<ValueData<T>> data, long[] uniqueCount, BitSet eq ) {
-        if( data.isEmpty() ) return null;
+    /**
+     * Subtree over the rows [from, to) of {@link BuildColumns#rows}, the split moves them into a range per child.
+     */
+    private TreeNode<T> toNode( BuildColumns columns, int from, int to, long[] uniqueCount, BitSet eq ) {
+        if( from == to ) return null;
+        if( subtrees == null || to - from < sharingThreshold ) return newNode( columns, from, to, uniqueCount, eq );
+
+        var fingerprint = columns.fingerprint( from, to, eq );
+        var node = previousSubtrees.get( fingerprint );
+        if( node != null ) {
+            statistics.sharedNodes.incrementAndGet();
+            statistics.sharedRows.addAndGet( to - from );
+            sharedRoots.add( node );
+        } else {
+            node = newNode( columns, from, to, uniqueCount, eq );
+        }
+        subtrees.put( fingerprint, node );
+        return node;
+    }
 
-        final SplitDimension splitDimension = findSplitDimension( data, uniqueCount, eq );
+    @SuppressWarnings( "unchecked" )
+    private TreeNode<T> newNode( BuildColumns columns, int from, int to, long[] uniqueCount, BitSet eq ) {
+        final SplitDimension splitDimension = findSplitDimension( columns, from, to, uniqueCount, eq );
 
-        if( splitDimension == null ) return new Leaf<>( Lists.map( data, sd -> sd.value ) );
+        if( splitDimension == null ) {
+            var ids = Arrays.stream( columns.rows, from, to ).map( row -> columns.selections[row] ).distinct().toArray();
+            statistics.add( NodeType.LEAF, NodeCostModel.ARRAY_HEADER_BYTES * 2 + ids.length * Integer.BYTES );
+            return new Leaf<>( ids );
+        }
 
         var bitSetWithDimension = withSet( eq, splitDimension.dimension );
 
         var dimension = dimensions.get( splitDimension.dimension );
+        var bounds = splitDimension.bounds;
+        var any = child( columns, bounds, BuildColumns.ANY, uniqueCount, bitSetWithDimension );
+
+        if( splitDimension.type == NodeType.ARRAY || splitDimension.type == NodeType.BINARY ) {
+            var arrays = splitDimension.arrays;
+            var setChildren = new ArrayList<Supplier<TreeNode<T>>>( arrays.size() );
+            for( var i = 0; i < arrays.size(); i++ ) setChildren.add( child( columns, bounds, i + 1, uniqueCount, bitSetWithDimension ) );
+            Supplier<TreeNode<T>> left = () -> null;
+            Supplier<TreeNode<T>> right = () -> null;
+            Supplier<TreeNode<T>> equal = () -> null;
+            if( splitDimension.type == NodeType.BINARY ) {
+                left = child( columns, bounds, BuildColumns.LEFT, uniqueCount, eq );
+                right = child( columns, bounds, BuildColumns.RIGHT, uniqueCount, eq );
+                equal = child( columns, bounds, BuildColumns.EQUAL, uniqueCount, bitSetWithDimension );
+            }
 
+            var sets = new ArrayList<ArrayBitSet<T>>( arrays.size() );
+            var setBytes = 0L;
+            for( var i = 0; i < arrays.size(); i++ ) {
+                var key = arrays.get( i );
+                var set = new ArrayBitSet<>( Bits.of( dimension.toBitSet( key ) ), key.operation, setChildren.get( i ).get() );
+                setBytes += set.bitSet.sizeInBytes();
+                sets.add( set );
+            }
+            statistics.add( splitDimension.type, NodeCostModel.NODE_BYTES + setBytes );
 
-        if( splitDimension.hash.isEmpty() ) {
-            var sets = Lists.map( Lists.groupBy(
-                splitDimension.sets,
-                s -> s.data.get( splitDimension.dimension )
-            ).entrySet(), es -> {
-                var key = ( Array ) es.getKey();
-                return new ArrayBitSet( dimension.toBitSet( key ), key.operation, toNode( es.getValue(), uniqueCount, bitSetWithDimension ) );
-            } );
-
-            return new Node(
+            return new Node<>(
                 splitDimension.dimension,
                 splitDimension.value,
-                toNode( splitDimension.left, uniqueCount, eq ),
-                toNode( splitDimension.right, uniqueCount, eq ),
-                toNode( splitDimension.equal, uniqueCount, bitSetWithDimension ),
-                toNode( splitDimension.any, uniqueCount, bitSetWithDimension ),
+                left.get(),
+                right.get(),
+                equal.get(),
+                any.get(),
                 sets
             );
         } else {
+            var keys = splitDimension.keys;
+            var dense = splitDimension.type == NodeType.DENSE_HASH;
+            statistics.add( splitDimension.type, NodeCostModel.bytes( splitDimension.type, keys ) );
+
+            var array = new TreeNode[dense ? ( int ) keys[keys.length - 1] + 1 : keys.length];
+            statistics.hashSlots.addAndGet( array.length );
+            var children = new ArrayList<Supplier<TreeNode<T>>>( keys.length );
+            for( var i = 0; i < keys.length; i++ ) children.add( child( columns, bounds, i + 1, uniqueCount, bitSetWithDimension ) );
+            for( var i = 0; i < keys.length; i++ ) {
+                array[dense ? ( int ) keys[i] : i] = children.get( i ).get();
+            }
 
-            var map = Lists.groupBy( splitDimension.hash,
-                d -> ( int ) dimension.getOrDefault( d.data.get( splitDimension.dimension ), ANY_AS_ARRAY )[0] );
-
-            var max = Collections.max( map.keySet() );
-
-            var array = new TreeNode[max + 1];
-            Arrays.fill( array, null );
-
-            map.forEach( ( p, l ) -> array[p] = toNode( l, uniqueCount, bitSetWithDimension ) );
-
-            return new HashNode(
+            return new HashNode<>(
                 splitDimension.dimension,
                 array,
-                toNode( splitDimension.any, uniqueCount, bitSetWithDimension )
+                dense ? null : keys,
+                any.get()
             );
         }
     }
 
+    /**
+     * Subtree over a bucket of the split: forked into the build pool if there are at least {@link #parallelThreshold} rows,
+     * otherwise built by the caller when the supplier is called.
+     */
+    private Supplier<TreeNode<T>> child( BuildColumns columns, int[] bounds, int bucket, long[] uniqueCount, BitSet eq ) {
+        var from = bounds[bucket];
+        var to = bounds[bucket + 1];
+        if( pool == null || to - from < parallelThreshold ) return () -> toNode( columns, from, to, uniqueCount, eq );
+
+        var task = ForkJoinTask.adapt( () -> toNode( columns, from, to, uniqueCount, eq ) ).fork();
+        return task::join;
+    }
+
+    /**
+     * A hash node is indexed by value directly if the values are not negative and fill at least
+     * 1/{@link #SPARSE_HASH_RATIO} of the table, otherwise it keeps the sorted values and is searched.
+     */
+    private static boolean isDense( long[] sortedKeys ) {
+        return sortedKeys[0] >= 0 && sortedKeys[sortedKeys.length - 1] < ( long ) sortedKeys.length * SPARSE_HASH_RATIO;
+    }
+
     private BitSet withSet( BitSet eq, int dimension ) {
         var bitSet = BitSet.valueOf( eq.toLongArray() );
         bitSet.set( dimension );
         return bitSet;
     }
 
-    private SplitDimension findSplitDimension( List<ValueData<T>> data, long[] uniqueCount, BitSet eqBitSet ) {
+    private SplitDimension findSplitDimension( BuildColumns columns, int from, int to, long[] uniqueCount, BitSet eqBitSet ) {
         int priority = Dimension.PRIORITY_LOW;
         int priorityArray = Dimension.PRIORITY_LOW;
         long uniqueSize = -1;
         long uniqueArraySize = Long.MAX_VALUE;
         int splitDimension = -1;
         int splitArrayDimension = -1;
+        long[] splitUnique = null;
 
         for( int i = 0; i < dimensions.size(); i++ ) {
             if( eqBitSet.get( i ) ) continue;
 
             var dimension = dimensions.get( i );
 
-            var isArray = dimension.operationType == null;
+            var isArray = columns.isArray( i );
 
             if( isArray && splitDimension >= 0 ) continue;
 
-            var unique = new HashSet<>();
-            var uniqueArray = new HashSet<>();
-
-            for( var vd : data ) {
-                var value = vd.data.get( i );
-                if( value instanceof Array ) {
-                    var array = ( Array ) value;
-                    if( !array.isEmpty() ) uniqueArray.add( array );
-                } else {
-                    var longValue = dimension.getOrDefault( value, ANY_AS_ARRAY );
-                    if( longValue != ANY_AS_ARRAY ) unique.add( longValue[0] );
+            if( !isArray ) {
+                var unique = columns.unique( i, from, to );
+                if( unique.length > 0 && ( unique.length > uniqueSize || dimension.priority > priority ) ) {
+                    uniqueSize = unique.length;
+                    splitDimension = i;
+                    splitUnique = unique;
+                    priority = dimension.priority;
+                }
+            } else {
+                var uniqueArray = columns.uniqueArrays( i, from, to );
+                if( uniqueArray > 0 && ( uniqueArray < uniqueArraySize || dimension.priority > priorityArray ) ) {
+                    uniqueArraySize = uniqueArray;
+                    splitArrayDimension = i;
+                    priorityArray = dimension.priority;
                 }
-
-            }
-
-            if( !isArray && unique.size() > 0 && ( unique.size() > uniqueSize || dimension.priority > priority ) ) {
-                uniqueSize = unique.size();
-                splitDimension = i;
-                priority = dimension.priority;
-            } else if( isArray && uniqueArray.size() > 0 && ( uniqueArray.size() < uniqueArraySize || dimension.priority > priorityArray ) ) {
-                uniqueArraySize = uniqueArray.size();
-                splitArrayDimension = i;
-                priorityArray = dimension.priority;
             }
         }
 
@@ -392,67 +634,450 @@ public class Tree<T> {
 
         var dimension = dimensions.get( finalSplitDimension );
 
-        if( dimension.operationType == null ) { //array
+        if( columns.isArray( finalSplitDimension ) ) {
+            var arrays = new ArrayList<Array>();
+            var bounds = columns.partition( finalSplitDimension, from, to, arrays );
+
+            return new SplitDimension( finalSplitDimension, Consts.ANY, bounds, null, arrays, NodeType.ARRAY );
+        } else {
+            final long[] unique = splitUnique;
+
+            var type = ( dimension.operationType == CONTAINS || dimension.operationType == CONTAINS_ALL ) && unique.length > 1
+                ? nodeType( unique, uniqueCount[finalSplitDimension] )
+                : NodeType.BINARY;
+            if( type != NodeType.BINARY ) {
+                var bounds = columns.partition( finalSplitDimension, from, to, unique );
+
+                return new SplitDimension( finalSplitDimension, Consts.ANY, bounds, unique, List.of(), type );
+            } else {
+                final long splitValue = unique[unique.length / 2];
+                var bounds = columns.partition( finalSplitDimension, from, to, splitValue );
+
+                return new SplitDimension( finalSplitDimension, splitValue, bounds, null, List.of(), type );
+            }
+        }
+    }
+
+    /**
+     * Node type for a split over the sorted distinct values: the {@link #costModel} if there is one,
+     * otherwise a hash node if the values are more than {@link #hashFillFactor} of the distinct values
+     * of the dimension in the whole tree.
+     */
+    private NodeType nodeType( long[] unique, long uniqueCount ) {
+        if( costModel != null ) return costModel.choose( unique );
+        if( ( double ) unique.length / uniqueCount <= hashFillFactor ) return NodeType.BINARY;
+        return isDense( unique ) ? NodeType.DENSE_HASH : NodeType.SORTED_HASH;
+    }
+
+    private static boolean isSuccess( PreFilter pd, long[] vals ) {
+        return isSuccess( pd, vals, vals.length );
+    }
+
+    private static boolean isSuccess( PreFilter pd, long[] vals, int length ) {
+        for( var i = 0; i < length; i++ ) {
+            var v = vals[i];
+            if( successIfBitEmptyOrSet( pd, v ) && successIfEmptyOrBitNotSet( pd, v ) ) return true;
+        }
+        return false;
+    }
+
+    public Set<T> find( List<?> query ) {
+        return find( query, newQueryContext() ).toSet();
+    }
+
+    public QueryContext<T> newQueryContext() {
+        return new QueryContext<>( dimensions.size() );
+    }
+
+    /**
+     * @param stackCapacity initial traversal stack size, see {@link QueryContext#getMaxStackDepth()}
+     */
+    public QueryContext<T> newQueryContext( int stackCapacity ) {
+        return new QueryContext<>( dimensions.size(), stackCapacity );
+    }
+
+    /**
+     * Non-tracing find, all buffers are taken from the context, so in steady state it does not allocate.
+     * Use {@link #find(List, List)} to debug why a selection was (not) found.
+     *
+     * @param context caller-owned context, cleared on every call
+     * @return the same context holding the selections for given query
+     */
+    public QueryContext<T> find( List<?> query, QueryContext<T> context ) {
+        return find( query, Integer.MAX_VALUE, context );
+    }
+
+    /**
+     * Same as {@link #find(List, QueryContext)}, but the traversal stops as soon as {@code limit} distinct
+     * selections are found.
+     */
+    public QueryContext<T> find( List<?> query, int limit, QueryContext<T> context ) {
+        context.clear( selections );
+        context.encode( dimensions, query );
+
+        if( preFilter && !isSuccess( preFilters, context ) ) return context;
+
+        if( cache == null || !cache.isOwner( this ) ) {
+            find( context, limit );
+            return context;
+        }
+
+        var ids = cache.get( this, context );
+        if( ids != null ) {
+            context.addAll( ids, limit );
+        } else if( find( context, limit ) ) {
+            cache.put( this, context, context.toIds() );
+        }
+        return context;
+    }
+
+    /**
+     * Streams distinct selections to the consumer as the traversal reaches them.
+     */
+    public void find( List<?> query, Consumer<? super T> consumer ) {
+        find( query, newQueryContext(), true, ( id, selection ) -> consumer.accept( selection ) );
+    }
+
+    /**
+     * Streams selections to the sink as the traversal reaches the leaves, no result collection is built.
+     *
+     * @param distinct suppress duplicates (a selection reachable by several paths) using the id bitmap
+     *                 of the context, otherwise a selection is passed once per path
+     */
+    public void find( List<?> query, QueryContext<T> context, boolean distinct, MatchSink<? super T> sink ) {
+        context.clear( selections );
+        context.encode( dimensions, query );
+
+        if( preFilter && !isSuccess( preFilters, context ) ) return;
+
+        if( cache != null && cache.isOwner( this ) ) {
+            var ids = cache.get( this, context );
+            if( ids != null ) {
+                for( var id : ids ) sink.accept( id, selections.get( id ) );
+                return;
+            }
+        }
+
+        start( context );
+        while( context.stackSize > 0 ) {
+            var node = context.pop();
+
+            if( node instanceof Leaf<?> leaf ) {
+                for( var id : leaf.selections ) {
+                    if( !distinct || context.add( id ) ) sink.accept( id, selections.get( id ) );
+                }
+            } else {
+                expand( node, context );
+            }
+        }
+    }
+
+    /**
+     * @return up to {@code limit} selections, the traversal stops once they are found
+     */
+    public Set<T> find( List<?> query, int limit ) {
+        return find( query, limit, newQueryContext() ).toSet();
+    }
+
+    /**
+     * @return any selection for given query, the traversal stops at the first one
+     */
+    public Optional<T> findAny( List<?> query ) {
+        var context = find( query, 1, newQueryContext() );
+        return context.isEmpty() ? Optional.empty() : Optional.of( context.get( 0 ) );
+    }
 
-            Pair<List<ValueData<T>>, List<ValueData<T>>> partition = Lists.partition( data, vd -> !getArrayFromDataList( finalSplitDimension, vd ).isEmpty() );
+    public boolean exists( List<?> query ) {
+        return !find( query, 1, newQueryContext() ).isEmpty();
+    }
 
-            return new SplitDimension( finalSplitDimension, Consts.ANY, emptyList(), emptyList(), emptyList(), partition._2, partition._1, emptyList() );
+    /**
+     * @return true if a selection accepted by the filter matches the query, the traversal stops at the first one
+     */
+    boolean exists( List<?> query, QueryContext<T> context, Predicate<? super T> filter ) {
+        context.clear( selections );
+        context.encode( dimensions, query );
+
+        if( preFilter && !isSuccess( preFilters, context ) ) return false;
+
+        if( cache != null && cache.isOwner( this ) ) {
+            var ids = cache.get( this, context );
+            if( ids != null ) {
+                for( var id : ids ) {
+                    if( filter.test( selections.get( id ) ) ) return true;
+                }
+                return false;
+            }
+        }
+
+        start( context );
+        while( context.stackSize > 0 ) {
+            var node = context.pop();
+
+            if( node instanceof Leaf<?> leaf ) {
+                for( var id : leaf.selections ) {
+                    if( context.add( id ) && filter.test( selections.get( id ) ) ) return true;
+                }
+            } else {
+                expand( node, context );
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return number of distinct selections for given query, without building the result set
+     */
+    public int count( List<?> query ) {
+        return find( query, selections.size(), newQueryContext() ).size();
+    }
+
+    /**
+     * @return false if the traversal was cut by the limit
+     */
+    private boolean find( QueryContext<T> context, int limit ) {
+        start( context );
+        return walk( context, limit );
+    }
+
+    /**
+     * Pushes the root, or the prefix cache frontier, onto the traversal stack.
+     */
+    private void start( QueryContext<T> context ) {
+        if( prefixCache == null || !prefixCache.isOwner( this ) ) {
+            context.push( root );
         } else {
+            var frontier = prefixCache.get( this, context );
+            if( frontier == null ) {
+                frontier = frontier( context );
+                prefixCache.put( this, context, frontier );
+            }
+            for( var node : frontier ) context.push( node );
+        }
+    }
 
-            var partitionAnyOther = Stream.of( data ).partition( sd -> dimension.getOrDefault( sd.data.get( finalSplitDimension ), ANY_AS_ARRAY ) == ANY_AS_ARRAY );
+    /**
+     * Nodes where the traversal leaves the prefix cache dimensions: leaves and nodes split on other dimensions.
+     * Depends on the values of the prefix dimensions only.
+     */
+    private Object[] frontier( QueryContext<T> context ) {
+        var frontier = new ArrayList<>();
 
-            var sorted = partitionAnyOther._2
-                .sorted( Comparator.comparingLong( sd -> dimension.getOrDefault( sd.data.get( finalSplitDimension ), ANY_AS_ARRAY )[0] ) )
-                .collect( toList() );
+        context.push( root );
+        while( context.stackSize > 0 ) {
+            var node = context.pop();
 
-            final long[] unique = sorted
-                .stream()
-                .mapToLong( sd -> dimension.getOrDefault( sd.data.get( finalSplitDimension ), ANY_AS_ARRAY )[0] ).distinct().toArray();
+            if( node instanceof Node<?> n && prefixCache.isKeyDimension( n.dimension )
+                || node instanceof HashNode<?> h && prefixCache.isKeyDimension( h.dimension ) ) {
+                expand( node, context );
+            } else {
+                frontier.add( node );
+            }
+        }
+
+        return frontier.toArray();
+    }
+
+    static boolean isSuccess( List<PreFilter> preFilters, QueryContext<?> context ) {
+        for( var i = 0; i < preFilters.size(); i++ ) {
+            var pd = preFilters.get( i );
+            if( !isSuccess( pd, context.query[pd.index], context.lengths[pd.index] ) ) {
+                pd.dimension.preFilterRejectCounter.increment();
+                return false;
+            }
+        }
+        return true;
+    }
 
-            if( ( dimension.operationType == CONTAINS || dimension.operationType == CONTAINS_ALL )
-                && unique.length > 1
-                && ( double ) unique.length / uniqueCount[finalSplitDimension] > hashFillFactor ) {
-                final List<ValueData<T>> any = partitionAnyOther._1.collect( toList() );
+    /**
+     * Drains the traversal stack of the context, or stops once {@code limit} selections are found.
+     *
+     * @return false if the limit was reached, the selections found may be incomplete
+     */
+    private boolean walk( QueryContext<T> context, int limit ) {
+        while( context.stackSize > 0 ) {
+            var node = context.pop();
 
-                return new SplitDimension( finalSplitDimension, Consts.ANY, emptyList(), emptyList(), emptyList(), any, emptyList(), sorted );
+            if( node instanceof Leaf<?> leaf ) {
+                context.addAll( leaf.selections, limit );
+                if( context.size() >= limit ) return false;
             } else {
+                expand( node, context );
+            }
+        }
+        return true;
+    }
 
-//                final long splitValue = dimension.getOrDefault( sorted.get( sorted.size() / 2).data.get( finalSplitDimension ), ANY_AS_ARRAY )[0];
-                final long splitValue = unique[unique.length / 2];
+    /**
+     * A left/right child splitting on the same dimension only needs the query values on its side of the parent.
+     */
+    private static void push( QueryContext<?> context, Object child, int dimension, int from, int to ) {
+        if( child instanceof Node<?> c && c.dimension == dimension ) context.push( child, from, to );
+        else context.push( child );
+    }
+
+    /**
+     * Pushes the children of a node the query goes to. Sorted set queries are split between
+     * left, equal and right by binary search instead of scanning all values at every node.
+     */
+    private void expand( Object node, QueryContext<T> context ) {
+        var query = context.query;
+        var lengths = context.lengths;
 
-                var partitionLeftEqRight = Stream.of( sorted )
-                    .partition( sd -> dimension.getOrDefault( sd.data.get( finalSplitDimension ), ANY_AS_ARRAY )[0] < splitValue );
-                var partitionEqRight = partitionLeftEqRight._2
-                    .partition( sd -> dimension.getOrDefault( sd.data.get( finalSplitDimension ), ANY_AS_ARRAY )[0] == splitValue );
+        if( node instanceof Node<?> ) {
+            @SuppressWarnings( "unchecked" ) // the stack only holds nodes of this tree
+            var n = ( Node<T> ) node;
 
-                final List<ValueData<T>> left = partitionLeftEqRight._1.collect( toList() );
-                final List<ValueData<T>> right = partitionEqRight._2.collect( toList() );
-                final List<ValueData<T>> eq = partitionEqRight._1.collect( toList() );
-                final List<ValueData<T>> any = Stream.of( partitionAnyOther._1 ).collect( toList() );
+            context.push( n.any );
+            var qValue = query[n.dimension];
+            var qLength = lengths[n.dimension];
+            if( qLength == 0 ) return;
+
+            var sets = n.sets;
+            if( !sets.isEmpty() ) {
+                var matches = context.match( n.index, qValue, qLength );
+                for( var i = 0; i < matches; i++ ) context.push( sets.get( context.setMatches[i] ).equal );
+            } else if( dimensions.get( n.dimension ).isSetQuery() ) {
+                var from = context.from;
+                var to = context.to < 0 ? qLength : context.to;
+                var split = Dimension.lowerBound( qValue, from, to, n.eqValue );
+                var equal = split < to && qValue[split] == n.eqValue;
+
+                if( split > from ) push( context, n.left, n.dimension, from, split );
+                if( equal ) context.push( n.equal );
+                var right = equal ? split + 1 : split;
+                if( right < to ) push( context, n.right, n.dimension, right, to );
+            } else {
+                var direction = dimensions.get( n.dimension ).direction( qValue, qLength, n.eqValue );
+                if( ( direction & LEFT ) > 0 ) context.push( n.left );
+                if( ( direction & EQUAL ) > 0 ) context.push( n.equal );
+                if( ( direction & RIGHT ) > 0 ) context.push( n.right );
+            }
+        } else if( node instanceof HashNode<?> n ) {
+            context.push( n.any );
+            var qValue = query[n.dimension];
+            var qLength = lengths[n.dimension];
 
-                return new SplitDimension( finalSplitDimension, splitValue, left, right, eq, any, emptyList(), emptyList() );
+            for( var i = 0; i < qLength; i++ ) {
+                var slot = n.slot( qValue[i] );
+                if( slot >= 0 ) context.push( n.hash[slot] );
             }
         }
     }
 
-    private Array getArrayFromDataList( int finalSplitDimension, ValueData<T> vd ) {
-        Object o = vd.data.get( finalSplitDimension );
-        return o instanceof Array arr ? arr : new Array( Collections.emptyList(), ArrayOperation.OR );
+    /**
+     * Evaluates many queries with a single walk of the tree. At every node the queries still active are split
+     * between the children, so the part of the tree shared by several queries is visited once.
+     *
+     * @return selections per query, in the order of queries
+     */
+    public List<Set<T>> findBatch( List<List<?>> queries ) {
+        var ids = new BitSet[queries.size()];
+        var longQueries = new long[queries.size()][][];
+        var active = new int[queries.size()];
+        var size = 0;
+
+        for( var i = 0; i < queries.size(); i++ ) {
+            ids[i] = new BitSet();
+            longQueries[i] = getLongQuery( queries.get( i ) );
+            if( !preFilter || isSuccess( preFilters, longQueries[i] ) ) active[size++] = i;
+        }
+
+        if( size > 0 ) findBatch( longQueries, active, size, ids );
+
+        var results = new ArrayList<Set<T>>( queries.size() );
+        for( var queryIds : ids ) {
+            var result = new HashSet<T>( Math.max( 16, queryIds.cardinality() * 2 ) );
+            queryIds.stream().forEach( id -> result.add( selections.get( id ) ) );
+            results.add( result );
+        }
+        return results;
     }
 
-    private static boolean isSuccess( PreFilter pd, long[] vals ) {
-        var found = false;
-        for( var v : vals ) {
-            if( successIfBitEmptyOrSet( pd, v ) && successIfEmptyOrBitNotSet( pd, v ) ) {
-                found = true;
-                break;
+    private static boolean isSuccess( List<PreFilter> preFilters, long[][] query ) {
+        for( var pd : preFilters ) {
+            if( !isSuccess( pd, query[pd.index] ) ) {
+                pd.dimension.preFilterRejectCounter.increment();
+                return false;
             }
         }
-        return found;
+        return true;
     }
 
-    public Set<T> find( List<?> query ) {
-        return find( query, new ArrayList<>() );
+    @SuppressWarnings( "unchecked" )
+    private void findBatch( long[][][] queries, int[] active, int size, BitSet[] results ) {
+        var stack = new ArrayDeque<BatchFrame>();
+        var children = new BatchChildren();
+        push( stack, new BatchFrame( root, active, size ) );
+
+        while( !stack.isEmpty() ) {
+            var frame = stack.pop();
+            var node = frame.node;
+
+            if( node instanceof Tree.Leaf ) {
+                var ids = ( ( Leaf<T> ) node ).selections;
+                for( var i = 0; i < frame.size; i++ ) {
+                    var result = results[frame.queries[i]];
+                    for( var id : ids ) result.set( id );
+                }
+            } else if( node instanceof Tree.Node ) {
+                var n = ( Node<T> ) node;
+
+                push( stack, new BatchFrame( n.any, frame.queries, frame.size ) );
+
+                if( !n.sets.isEmpty() ) {
+                    children.ensureCapacity( n.sets.size() );
+                    for( var i = 0; i < frame.size; i++ ) {
+                        var q = frame.queries[i];
+                        var qValue = queries[q][n.dimension];
+                        if( qValue.length == 0 ) continue;
+
+                        var count = n.index.match( qValue, qValue.length, children.hits, children.matches );
+                        for( var m = 0; m < count; m++ ) {
+                            var s = children.matches[m];
+                            children.add( s, n.sets.get( s ).equal, frame.size, q );
+                        }
+                    }
+                    children.pushTo( stack );
+                } else {
+                    var dimension = dimensions.get( n.dimension );
+                    var left = new BatchFrame( n.left, frame.size );
+                    var equal = new BatchFrame( n.equal, frame.size );
+                    var right = new BatchFrame( n.right, frame.size );
+                    for( var i = 0; i < frame.size; i++ ) {
+                        var q = frame.queries[i];
+                        var qValue = queries[q][n.dimension];
+                        if( qValue.length == 0 ) continue;
+
+                        var direction = dimension.direction( qValue, n.eqValue );
+                        if( ( direction & LEFT ) > 0 ) left.add( q );
+                        if( ( direction & EQUAL ) > 0 ) equal.add( q );
+                        if( ( direction & RIGHT ) > 0 ) right.add( q );
+                    }
+                    push( stack, left );
+                    push( stack, equal );
+                    push( stack, right );
+                }
+            } else {
+                var n = ( HashNode<T> ) node;
+
+                push( stack, new BatchFrame( n.any, frame.queries, frame.size ) );
+
+                children.ensureCapacity( n.hash.length );
+                for( var i = 0; i < frame.size; i++ ) {
+                    var q = frame.queries[i];
+                    for( var value : queries[q][n.dimension] ) {
+                        var slot = n.slot( value );
+                        if( slot >= 0 ) children.add( slot, n.hash[slot], frame.size, q );
+                    }
+                }
+                children.pushTo( stack );
+            }
+        }
+    }
+
+    private void push( ArrayDeque<BatchFrame> stack, BatchFrame frame ) {
+        if( frame.node != null && frame.size > 0 ) stack.push( frame );
     }
 
     /**
@@ -466,84 +1091,137 @@ public class Tree<T> {
         var result = new HashSet<T>();
         var longQuery = getLongQuery( query );
 
-        if( preFilter ) {
-            for( var pd : preFilters ) {
-                var vals = longQuery[pd.index];
-                var found = isSuccess( pd, vals );
-
-                if( !found ) {
-                    pd.dimension.preFilterRejectCounter.increment();
-                    return Set.of();
-                }
-            }
-        }
+        if( preFilter && !isSuccess( preFilters, longQuery ) ) return Set.of();
 
         find( root, longQuery, result, paths );
         return result;
     }
 
-    private void find( TreeNode<T> node, long[][] query, HashSet<T> result, List<String> paths ) {
-        if( node == null ) return;
-
-        if( node instanceof Leaf ) {
-            List<T> selections = ( ( Leaf<T> ) node ).selections;
-            result.addAll( selections );
-            paths.add( nodeToString( node ) + " -> success: " + Joiner.on( ", " ).join( selections ) );
-        } else if( node instanceof Tree.Node ) {
-            final Node n = ( Node ) node;
-
-            find( n.any, query, result, paths );
-            var qValue = query[n.dimension];
-            var dimension = dimensions.get( n.dimension );
-
-            if( qValue == ANY_AS_ARRAY ) return;
-
-            var sets = n.sets;
-            if( !sets.isEmpty() ) {
-                for( ArrayBitSet set : sets ) {
-                    if( set.find( qValue ) ) {
-                        paths.add( nodeToString( set.equal ) + " -> go equal" );
-                        find( set.equal, query, result, paths );
+    private void find( TreeNode<T> root, long[][] query, HashSet<T> result, List<String> paths ) {
+        var nodes = new ArrayList<TreeNode<T>>();
+        var labels = new ArrayList<String>();
+        nodes.add( root );
+        labels.add( null );
+
+        while( !nodes.isEmpty() ) {
+            var last = nodes.size() - 1;
+            var node = nodes.remove( last );
+            var label = labels.remove( last );
+            if( label != null ) paths.add( nodeToString( node ) + label );
+            if( node == null ) continue;
+
+            var from = nodes.size();
+            if( node instanceof Tree.Leaf ) {
+                var selections = ( ( Leaf<T> ) node ).values( this.selections );
+                result.addAll( selections );
+                paths.add( nodeToString( node ) + " -> success: " + Joiner.on( ", " ).join( selections ) );
+            } else if( node instanceof Tree.Node ) {
+                final Node<T> n = ( Node<T> ) node;
+
+                nodes.add( n.any );
+                labels.add( null );
+                var qValue = query[n.dimension];
+                var dimension = dimensions.get( n.dimension );
+
+                if( qValue != ANY_AS_ARRAY ) {
+                    var sets = n.sets;
+                    if( !sets.isEmpty() ) {
+                        for( ArrayBitSet<T> set : sets ) {
+                            if( set.find( qValue ) ) {
+                                nodes.add( set.equal );
+                                labels.add( " -> go equal" );
+                            }
+                        }
+                    } else {
+                        var direction = dimension.direction( qValue, n.eqValue );
+                        if( ( direction & LEFT ) > 0 ) {
+                            nodes.add( n.left );
+                            labels.add( " -> go left" );
+                        }
+                        if( ( direction & EQUAL ) > 0 ) {
+                            nodes.add( n.equal );
+                            labels.add( " -> go equal" );
+                        }
+                        if( ( direction & RIGHT ) > 0 ) {
+                            nodes.add( n.right );
+                            labels.add( " -> go right" );
+                        }
                     }
                 }
             } else {
-                var direction = dimension.direction( qValue, n.eqValue );
-                if( ( direction & LEFT ) > 0 ) {
-                    paths.add( nodeToString( n.left ) + " -> go left" );
-                    find( n.left, query, result, paths );
-                }
-                if( ( direction & EQUAL ) > 0 ) {
-                    paths.add( nodeToString( n.equal ) + " -> go equal" );
-                    find( n.equal, query, result, paths );
+                HashNode<T> n = ( HashNode<T> ) node;
+
+                nodes.add( n.any );
+                labels.add( " -> go any" );
+                var qValue = query[n.dimension];
+
+                for( long aQValue : qValue ) {
+                    final int slot = n.slot( aQValue );
+                    if( slot >= 0 ) {
+                        nodes.add( n.hash[slot] );
+                        labels.add( " -> go index" );
+                    }
                 }
-                if( ( direction & RIGHT ) > 0 ) {
-                    paths.add( nodeToString( n.right ) + " -> go right" );
-                    find( n.right, query, result, paths );
+            }
+
+            // children are visited in the order they were added
+            Collections.reverse( nodes.subList( from, nodes.size() ) );
+            Collections.reverse( labels.subList( from, labels.size() ) );
+        }
+    }
+
+    /**
+     * Converts the built tree into a flat, read-only {@link CompiledTree}. The tree itself is not changed,
+     * so it can be dropped once compiled.
+     */
+    public CompiledTree<T> compile() {
+        var layout = new CompiledTree.Layout<T>();
+        compile( root, layout );
+        return layout.build( dimensions, List.copyOf( preFilters ), preFilter, selections );
+    }
+
+    private int compile( TreeNode<T> node, CompiledTree.Layout<T> layout ) {
+        if( node == null ) return CompiledTree.NONE;
+
+        if( node instanceof Tree.Leaf ) {
+            return layout.addLeaf( ( ( Leaf<T> ) node ).selections );
+        } else if( node instanceof Tree.Node ) {
+            var n = ( Node<T> ) node;
+
+            if( !n.sets.isEmpty() ) {
+                var index = layout.addNode( CompiledTree.ARRAY, n.dimension, n.eqValue );
+                var first = layout.addSets( index, n.index );
+                for( var i = 0; i < n.sets.size(); i++ ) {
+                    var set = n.sets.get( i );
+                    layout.set( first + i, set.operation, set.bitSet.cardinality(), compile( set.equal, layout ) );
                 }
+                layout.any( index, compile( n.any, layout ) );
+                return index;
             }
+
+            var index = layout.addNode( CompiledTree.NODE, n.dimension, n.eqValue );
+            layout.children( index,
+                compile( n.left, layout ), compile( n.right, layout ), compile( n.equal, layout ), compile( n.any, layout ) );
+            return index;
         } else {
-            HashNode n = ( HashNode ) node;
-            paths.add( nodeToString( n.any ) + " -> go any" );
+            var n = ( HashNode<T> ) node;
 
-            find( n.any, query, result, paths );
-            var qValue = query[n.dimension];
-            if( qValue == ANY_AS_ARRAY ) return;
-
-            TreeNode<T>[] hash = n.hash;
-            for( long aQValue : qValue ) {
-                final int index = ( int ) aQValue;
-                if( index < hash.length ) {
-                    paths.add( nodeToString( hash[index] ) + " -> go index" );
-                    find( hash[index], query, result, paths );
-                }
+            var index = n.keys != null
+                ? layout.addNode( CompiledTree.SPARSE_HASH, n.dimension, layout.addHashKeys( n.keys ) )
+                : layout.addNode( CompiledTree.HASH, n.dimension, Consts.ANY );
+            var slot = layout.addHash( index, n.hash.length );
+            for( var i = 0; i < n.hash.length; i++ ) {
+                layout.hashChild( slot + i, compile( n.hash[i], layout ) );
             }
+            layout.any( index, compile( n.any, layout ) );
+            return index;
         }
     }
 
     private String nodeToString( TreeNode<T> node ) {
         if ( !fullDebug || node == null ) return "";
         StringBuilder res = new StringBuilder();
-        node.print( res );
+        node.print( this, res );
         return res.toString();
     }
 
@@ -551,84 +1229,96 @@ public class Tree<T> {
         return trace( query, key -> true );
     }
 
-    private void trace( TreeNode<T> node,
+    private void trace( TreeNode<T> root,
                         long[][] query,
                         Map<T, Map<Integer, TraceOperationTypeValues>> result,
-                        Set<T> fitsForQuery,
-                        TraceBuffer buffer,
-                        boolean success ) {
-        if( node == null ) return;
-
-        if( node instanceof Leaf ) {
-            var selections = ( ( Leaf<T> ) node ).selections;
-            if( !success ) {
-                log.trace( "success: false" );
-                selections.forEach( s -> {
-                    var dv = result.computeIfAbsent( s, ss -> new HashMap<>() );
-                    buffer.forEach( ( d, otv ) ->
-                        otv.forEach( ( ot, v ) ->
-                            dv.computeIfAbsent( d, dd -> new TraceOperationTypeValues() ).addAll( ot, v )
-                        )
-                    );
-                } );
-            } else {
-                log.trace( "success: true" );
-                selections.forEach( s -> {
-                    fitsForQuery.add( s );
-                    result.remove( s );
-                } );
-            }
-        } else if( node instanceof Tree.Node ) {
-            var n = ( Node ) node;
-
-            trace( n.any, query, result, fitsForQuery, buffer.clone(), success );
-            var qValue = query[n.dimension];
-            var dimension = dimensions.get( n.dimension );
-            log.trace( "[{}] -> {}", dimension, qValue );
-
-            if( qValue == ANY_AS_ARRAY ) {
-                trace( n.equal, query, result, fitsForQuery, buffer.cloneWith( n.dimension, n.eqValue, dimension.operationType, false ), false );
-                trace( n.right, query, result, fitsForQuery, buffer.clone(), false );
-                trace( n.left, query, result, fitsForQuery, buffer.clone(), false );
-
-                for( var set : n.sets ) {
-                    trace( set.equal, query, result, fitsForQuery, buffer.cloneWith( n.dimension, set.bitSet.stream(), set.operation.operationType, false ), false );
-                }
-            } else if( !n.sets.isEmpty() ) {
-                for( var set : n.sets ) {
-                    var eqSuccess = set.find( qValue );
-                    trace( set.equal, query, result, fitsForQuery, buffer.cloneWith( n.dimension, set.bitSet.stream(), set.operation.operationType, eqSuccess ), success && eqSuccess );
+                        Set<T> fitsForQuery ) {
+        var stack = new ArrayDeque<TraceFrame>();
+        var children = new ArrayList<TraceFrame>();
+        stack.push( new TraceFrame( root, TraceBuffer::new, true ) );
+
+        while( !stack.isEmpty() ) {
+            var frame = stack.pop();
+            var node = frame.node;
+            var success = frame.success;
+            var buffer = frame.buffer.get();
+            if( node == null ) continue;
+
+            if( node instanceof Tree.Leaf ) {
+                var selections = ( ( Leaf<T> ) node ).values( this.selections );
+                if( !success ) {
+                    log.trace( "success: false" );
+                    selections.forEach( s -> {
+                        var dv = result.computeIfAbsent( s, ss -> new HashMap<>() );
+                        buffer.forEach( ( d, otv ) ->
+                            otv.forEach( ( ot, v ) ->
+                                dv.computeIfAbsent( d, dd -> new TraceOperationTypeValues() ).addAll( ot, v )
+                            )
+                        );
+                    } );
+                } else {
+                    log.trace( "success: true" );
+                    selections.forEach( s -> {
+                        fitsForQuery.add( s );
+                        result.remove( s );
+                    } );
                 }
-            } else {
-                var direction = dimension.direction( qValue, n.eqValue );
+            } else if( node instanceof Tree.Node ) {
+                var n = ( Node<T> ) node;
 
-                var left = ( direction & LEFT ) > 0;
-                trace( n.left, query, result, fitsForQuery, buffer.clone(), success && left );
+                children.add( new TraceFrame( n.any, buffer::clone, success ) );
+                var qValue = query[n.dimension];
+                var dimension = dimensions.get( n.dimension );
+                log.trace( "[{}] -> {}", dimension, qValue );
 
-                var right = ( direction & RIGHT ) > 0;
-                trace( n.right, query, result, fitsForQuery, buffer.clone(), success && right );
+                if( qValue == ANY_AS_ARRAY ) {
+                    children.add( new TraceFrame( n.equal, () -> buffer.cloneWith( n.dimension, n.eqValue, dimension.operationType, false ), false ) );
+                    children.add( new TraceFrame( n.right, buffer::clone, false ) );
+                    children.add( new TraceFrame( n.left, buffer::clone, false ) );
 
-                var eq = ( direction & EQUAL ) > 0;
-                trace( n.equal, query, result, fitsForQuery, buffer.cloneWith( n.dimension, n.eqValue, dimension.operationType, eq ), success && eq );
-            }
-        } else {
-            var n = ( HashNode ) node;
+                    for( var set : n.sets ) {
+                        children.add( new TraceFrame( set.equal, () -> buffer.cloneWith( n.dimension, set.bitSet.stream(), set.operation.operationType, false ), false ) );
+                    }
+                } else if( !n.sets.isEmpty() ) {
+                    for( var set : n.sets ) {
+                        var eqSuccess = set.find( qValue );
+                        children.add( new TraceFrame( set.equal, () -> buffer.cloneWith( n.dimension, set.bitSet.stream(), set.operation.operationType, eqSuccess ), success && eqSuccess ) );
+                    }
+                } else {
+                    var direction = dimension.direction( qValue, n.eqValue );
 
-            trace( n.any, query, result, fitsForQuery, buffer.clone(), success );
-            var qValue = query[n.dimension];
-            var dimension = dimensions.get( n.dimension );
-            log.trace( "[{}] -> {}", dimension, qValue );
+                    var left = ( direction & LEFT ) > 0;
+                    children.add( new TraceFrame( n.left, buffer::clone, success && left ) );
+
+                    var right = ( direction & RIGHT ) > 0;
+                    children.add( new TraceFrame( n.right, buffer::clone, success && right ) );
 
-            if( qValue == ANY_AS_ARRAY ) {
-                for( var s : n.hash ) {
-                    trace( s, query, result, fitsForQuery, buffer.clone(), false );
+                    var eq = ( direction & EQUAL ) > 0;
+                    children.add( new TraceFrame( n.equal, () -> buffer.cloneWith( n.dimension, n.eqValue, dimension.operationType, eq ), success && eq ) );
                 }
             } else {
-                for( var i = 0; i < n.hash.length; i++ ) {
-                    var contains = ArrayUtils.contains( qValue, i );
-                    trace( n.hash[i], query, result, fitsForQuery, buffer.cloneWith( n.dimension, i, dimension.operationType, contains ), success && contains );
+                var n = ( HashNode<T> ) node;
+
+                children.add( new TraceFrame( n.any, buffer::clone, success ) );
+                var qValue = query[n.dimension];
+                var dimension = dimensions.get( n.dimension );
+                log.trace( "[{}] -> {}", dimension, qValue );
+
+                if( qValue == ANY_AS_ARRAY ) {
+                    for( var s : n.hash ) {
+                        children.add( new TraceFrame( s, buffer::clone, false ) );
+                    }
+                } else {
+                    for( var i = 0; i < n.hash.length; i++ ) {
+                        var key = n.key( i );
+                        var contains = ArrayUtils.contains( qValue, key );
+                        children.add( new TraceFrame( n.hash[i], () -> buffer.cloneWith( n.dimension, key, dimension.operationType, contains ), success && contains ) );
+                    }
                 }
             }
+
+            for( var i = children.size() - 1; i >= 0; i-- ) stack.push( children.get( i ) );
+            children.clear();
         }
     }
 
@@ -661,7 +1351,7 @@ public class Tree<T> {
         }
 
         if( outPF.length() == 0 ) {
-            trace( root, longQuery, result, fitsForQuery, new TraceBuffer(), true );
+            trace( root, longQuery, result, fitsForQuery );
         }
         result
             .entrySet()
@@ -714,7 +1404,7 @@ public class Tree<T> {
             var result = new HashMap<T, Map<Integer, TraceOperationTypeValues>>();
             var fitsForQuery = new LinkedHashSet<T>();
             var longQuery = getLongQuery( query );
-            trace( root, longQuery, result, fitsForQuery, new TraceBuffer(), true );
+            trace( root, longQuery, result, fitsForQuery );
 
             var stats = result
                 .entrySet()
@@ -773,12 +1463,12 @@ public class Tree<T> {
     private void print( String prefix, boolean isTail, TreeNode<T> node, StringBuilder out, String type, int level, int depth ) {
         out.append( prefix ).append( isTail ? "└── " : "├── " ).append( type ).append( ":" );
         if( node != null ) {
-            node.print( out );
+            node.print( this, out );
             out.append( "\n" );
 
             if( depth > 0 && level >= depth ) return;
 
-            var children = Lists.filter( node.children(), p -> p._2 != null );
+            var children = Lists.filter( node.children( this ), p -> p._2 != null );
 
             for( int i = 0; i < children.size(); i++ ) {
                 var child = children.get( i );
@@ -810,10 +1500,10 @@ public class Tree<T> {
             return;
         }
 
-        if( node instanceof Leaf ) {
+        if( node instanceof Tree.Leaf ) {
             if( currentDepth > maxDepth.get() ) maxDepth.set( currentDepth );
         } else if( node instanceof Tree.Node ) {
-            var n = ( Node ) node;
+            var n = ( Node<T> ) node;
             findMaxDepth( n.left, maxDepth, currentDepth + 1 );
             findMaxDepth( n.right, maxDepth, currentDepth + 1 );
             findMaxDepth( n.any, maxDepth, currentDepth + 1 );
@@ -823,7 +1513,7 @@ public class Tree<T> {
                 findMaxDepth( abs.equal, maxDepth, currentDepth + 1 );
             }
         } else {
-            var n = ( HashNode ) node;
+            var n = ( HashNode<T> ) node;
 
             findMaxDepth( n.any, maxDepth, currentDepth + 1 );
             for( var i = 0; i < n.hash.length; i++ ) {
@@ -843,10 +1533,14 @@ public class Tree<T> {
         }
     }
 
+    /**
+     * Nodes do not reference the tree that built them, so a subtree can be shared by the next tree,
+     * see {@link TreeBuilder#withStructuralSharing(int)}.
+     */
     private interface TreeNode<T> {
-        List<Pair<String, TreeNode<T>>> children();
+        List<Pair<String, TreeNode<T>>> children( Tree<T> tree );
 
-        void print( StringBuilder out );
+        void print( Tree<T> tree, StringBuilder out );
     }
 
     public static class PreFilter {
@@ -893,20 +1587,29 @@ public class Tree<T> {
 
     @ToString
     static class Leaf<T> implements TreeNode<T> {
-        final List<T> selections;
+        /**
+         * dense ids, see {@link Selections}
+         */
+        final int[] selections;
 
-        private Leaf( List<T> selections ) {
+        private Leaf( int[] selections ) {
             this.selections = selections;
         }
 
+        List<T> values( Selections<T> values ) {
+            var result = new ArrayList<T>( selections.length );
+            for( var id : selections ) result.add( values.get( id ) );
+            return result;
+        }
+
         @Override
-        public List<Pair<String, TreeNode<T>>> children() {
+        public List<Pair<String, TreeNode<T>>> children( Tree<T> tree ) {
             return Collections.emptyList();
         }
 
         @Override
-        public void print( StringBuilder out ) {
-            var collect = selections.stream()
+        public void print( Tree<T> tree, StringBuilder out ) {
+            var collect = values( tree.selections ).stream()
                 .map( Object::toString )
                 .collect( java.util.stream.Collectors.joining( "," ) );
             out.append( "dn|[" )
@@ -994,36 +1697,129 @@ public class Tree<T> {
         }
     }
 
+    /**
+     * Pending trace step, the buffer is cloned only when the step is taken to keep the recursive visiting order.
+     */
+    private class TraceFrame {
+        private final TreeNode<T> node;
+        private final Supplier<TraceBuffer> buffer;
+        private final boolean success;
+
+        private TraceFrame( TreeNode<T> node, Supplier<TraceBuffer> buffer, boolean success ) {
+            this.node = node;
+            this.buffer = buffer;
+            this.success = success;
+        }
+    }
+
+    /**
+     * Queries (by index) that reached the node during {@link #findBatch(List)}.
+     */
     @ToString
-    private class ArrayBitSet {
-        private final BitSet bitSet;
+    private class BatchFrame {
+        private final TreeNode<T> node;
+        private int[] queries;
+        private int size;
+        private int capacity;
+
+        private BatchFrame( TreeNode<T> node, int[] queries, int size ) {
+            this.node = node;
+            this.queries = queries;
+            this.size = size;
+        }
+
+        /**
+         * Empty frame, the buffer is allocated on the first query added.
+         */
+        private BatchFrame( TreeNode<T> node, int capacity ) {
+            this.node = node;
+            this.capacity = capacity;
+        }
+
+        private void add( int query ) {
+            if( size > 0 && queries[size - 1] == query ) return;
+            if( queries == null ) queries = new int[capacity];
+            queries[size++] = query;
+        }
+    }
+
+    /**
+     * Groups the queries of a node by child (set index or hash slot) during {@link #findBatch(List)}.
+     * The buffers are reused from node to node, {@link #pushTo(ArrayDeque)} leaves them cleared.
+     */
+    private class BatchChildren {
+        private final ArrayList<BatchFrame> frames = new ArrayList<>();
+        private int[] touched = new int[16];
+        private int count;
+
+        /**
+         * {@link ArraySetIndex#match(long[], int, int[], int[])} scratch
+         */
+        private int[] hits = new int[16];
+        private int[] matches = new int[16];
+
+        private void ensureCapacity( int children ) {
+            while( frames.size() < children ) frames.add( null );
+            if( touched.length >= children ) return;
+            touched = new int[children];
+            hits = new int[children];
+            matches = new int[children];
+        }
+
+        private void add( int child, TreeNode<T> node, int capacity, int query ) {
+            var frame = frames.get( child );
+            if( frame == null ) {
+                frame = new BatchFrame( node, capacity );
+                frames.set( child, frame );
+                touched[count++] = child;
+            }
+            frame.add( query );
+        }
+
+        private void pushTo( ArrayDeque<BatchFrame> stack ) {
+            for( var i = 0; i < count; i++ ) {
+                push( stack, frames.set( touched[i], null ) );
+            }
+            count = 0;
+        }
+    }
+
+    private static class ArrayBitSet<T> {
+        private final Bits bitSet;
         private final ArrayOperation operation;
         private final TreeNode<T> equal;
+        private final int cardinality;
 
-        private ArrayBitSet( BitSet bitSet, ArrayOperation operation, TreeNode<T> equal ) {
+        private ArrayBitSet( Bits bitSet, ArrayOperation operation, TreeNode<T> equal ) {
             this.bitSet = bitSet;
             this.operation = operation;
             this.equal = equal;
+            this.cardinality = bitSet.cardinality();
         }
 
         public final boolean find( long[] qValue ) {
+            return find( qValue, qValue.length );
+        }
+
+        public final boolean find( long[] qValue, int qLength ) {
             switch( operation ) {
                 case OR -> {
-                    for( long value : qValue ) {
-                        if( bitSet.get( ( int ) value ) ) return true;
+                    for( var i = 0; i < qLength; i++ ) {
+                        if( bitSet.get( qValue[i] ) ) return true;
                     }
                     return false;
                 }
                 case AND -> {
-                    var newBitSet = ( BitSet ) bitSet.clone();
-                    for( long value : qValue ) {
-                        newBitSet.clear( ( int ) value );
+                    // the query is sorted and distinct (Dimension#getOrDefault), every set bit must be found once
+                    var found = 0;
+                    for( var i = 0; i < qLength; i++ ) {
+                        if( bitSet.get( qValue[i] ) ) found++;
                     }
-                    return newBitSet.isEmpty();
+                    return found == cardinality;
                 }
                 case NOT -> {
-                    for( long value : qValue ) {
-                        if( bitSet.get( ( int ) value ) ) return false;
+                    for( var i = 0; i < qLength; i++ ) {
+                        if( bitSet.get( qValue[i] ) ) return false;
                     }
                     return true;
                 }
@@ -1032,66 +1828,90 @@ public class Tree<T> {
         }
     }
 
-    private class SplitDimension {
-        private final List<ValueData<T>> left;
-        private final List<ValueData<T>> right;
-        private final List<ValueData<T>> equal;
-        private final List<ValueData<T>> any;
-        private final List<ValueData<T>> sets;
-        private final List<ValueData<T>> hash;
+    /**
+     * Rows of the children of a split, bucket b is [bounds[b], bounds[b + 1]) of {@link BuildColumns#rows}:
+     * any first, then left, equal and right of a binary split or a bucket per array or hash key.
+     */
+    private static final class SplitDimension {
+        private final int[] bounds;
+        /**
+         * sorted distinct values of a hash split
+         */
+        private final long[] keys;
+        private final List<Array> arrays;
         private final int dimension;
         private final long value;
+        private final NodeType type;
 
         private SplitDimension(
             int dimension,
             long value,
-            List<ValueData<T>> left,
-            List<ValueData<T>> right,
-            List<ValueData<T>> equal,
-            List<ValueData<T>> any,
-            List<ValueData<T>> sets,
-            List<ValueData<T>> hash
+            int[] bounds,
+            long[] keys,
+            List<Array> arrays,
+            NodeType type
         ) {
             this.dimension = dimension;
             this.value = value;
+            this.type = type;
 
-            this.left = left;
-            this.right = right;
-            this.equal = equal;
-            this.any = any;
-            this.sets = sets;
-            this.hash = hash;
+            this.bounds = bounds;
+            this.keys = keys;
+            this.arrays = arrays;
         }
     }
 
     @ToString
-    class HashNode implements TreeNode<T> {
+    static class HashNode<T> implements TreeNode<T> {
+        /**
+         * children indexed by value, or parallel to {@link #keys} for a sparse node
+         */
         final TreeNode<T>[] hash;
+        /**
+         * sorted values of a sparse node, null if the node is dense
+         */
+        final long[] keys;
         final int dimension;
         final TreeNode<T> any;
 
-        HashNode( int dimension, TreeNode<T>[] hash, TreeNode<T> any ) {
+        HashNode( int dimension, TreeNode<T>[] hash, long[] keys, TreeNode<T> any ) {
             this.hash = hash;
+            this.keys = keys;
             this.dimension = dimension;
             this.any = any;
         }
 
+        /**
+         * @return position of the child for the value in {@link #hash}, -1 if there is none
+         */
+        int slot( long value ) {
+            if( keys != null ) {
+                var slot = Arrays.binarySearch( keys, value );
+                return slot >= 0 ? slot : -1;
+            }
+            return value >= 0 && value < hash.length && hash[( int ) value] != null ? ( int ) value : -1;
+        }
+
+        long key( int slot ) {
+            return keys != null ? keys[slot] : slot;
+        }
+
         @Override
-        public List<Pair<String, TreeNode<T>>> children() {
+        public List<Pair<String, TreeNode<T>>> children( Tree<T> tree ) {
             var result = new ArrayList<Pair<String, TreeNode<T>>>();
             result.add( __( "a", any ) );
 
             for( var i = 0; i < hash.length; i++ ) {
                 var heq = hash[i];
-                result.add( __( "h" + i, heq ) );
+                result.add( __( "h" + key( i ), heq ) );
             }
 
             return result;
         }
 
         @Override
-        public void print( StringBuilder out ) {
-            var dimension = dimensions.get( this.dimension );
+        public void print( Tree<T> tree, StringBuilder out ) {
+            var dimension = tree.dimensions.get( this.dimension );
             out.append( "kdh|" )
                 .append( "d:" )
                 .append( dimension.name ).append( '/' ).append( this.dimension );
@@ -1099,8 +1919,12 @@ public class Tree<T> {
     }
 
     @ToString
-    class Node implements TreeNode<T> {
-        final List<ArrayBitSet> sets;
+    static class Node<T> implements TreeNode<T> {
+        final List<ArrayBitSet<T>> sets;
+        /**
+         * value -> sets, null if there are no sets
+         */
+        final ArraySetIndex index;
         final TreeNode<T> left;
         final TreeNode<T> right;
         final TreeNode<T> equal;
@@ -1109,7 +1933,7 @@ public class Tree<T> {
         final long eqValue;
 
         private Node( int dimension, long eqValue, TreeNode<T> left, TreeNode<T> right,
-                      TreeNode<T> equal, TreeNode<T> any, List<ArrayBitSet> sets ) {
+                      TreeNode<T> equal, TreeNode<T> any, List<ArrayBitSet<T>> sets ) {
             this.dimension = dimension;
             this.eqValue = eqValue;
             this.left = left;
@@ -1117,10 +1941,11 @@ public class Tree<T> {
             this.equal = equal;
             this.any = any;
             this.sets = sets;
+            this.index = sets.isEmpty() ? null : new ArraySetIndex( Lists.map( sets, s -> s.bitSet ), Lists.map( sets, s -> s.operation ) );
         }
 
         @Override
-        public List<Pair<String, TreeNode<T>>> children() {
+        public List<Pair<String, TreeNode<T>>> children( Tree<T> tree ) {
             var result = new ArrayList<Pair<String, TreeNode<T>>>();
             result.add( __( "l", left ) );
             result.add( __( "r", right ) );
@@ -1128,13 +1953,14 @@ public class Tree<T> {
             result.add( __( "a", any ) );
 
             for( var set : sets )
-                result.add( __( ( set.operation.name() + ":" ) + bitSetToData( set.bitSet ), set.equal ) );
+                result.add( __( ( set.operation.name() + ":" ) + bitSetToData( tree, set.bitSet ), set.equal ) );
 
             return result;
         }
 
-        private String bitSetToData( BitSet bitSet ) {
-            var dimension = dimensions.get( this.dimension );
+        private String bitSetToData( Tree<T> tree, Bits bitSet ) {
+            var dimension = tree.dimensions.get( this.dimension );
+            var maxTraceListCount = tree.maxTraceListCount;
 
             var size = bitSet.stream().limit( maxTraceListCount + 1 ).count();
             return bitSet
@@ -1145,8 +1971,8 @@ public class Tree<T> {
         }
 
         @Override
-        public void print( StringBuilder out ) {
-            var dimension = dimensions.get( this.dimension );
+        public void print( Tree<T> tree, StringBuilder out ) {
+            var dimension = tree.dimensions.get( this.dimension );
             out.append( "kdn|" )
                 .append( "d:" )
                 .append( dimension.name ).append( '/' ).append( this.dimension )
@@ -26,14 +26,35 @@ package oap.tree;
 
 import oap.util.Lists;
 
+import java.nio.file.Path;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.IntStream;
 
 public class TreeBuilder<T> {
+    public static final int DEFAULT_PARALLEL_THRESHOLD = 10000;
+    public static final int DEFAULT_SKETCH_PRECISION = 14;
+    public static final double DEFAULT_DICTIONARY_LIVE_RATIO = 0.5;
+
     private List<Dimension<?>> dimensions;
     private double hashFillFactor = 0.25;
     private int maxTraceListCount = 10;
     private boolean preFilters = false;
     private boolean fullDebug;
+    private QueryCache<int[]> cache;
+    private QueryCache<Object[]> prefixCache;
+    private NodeCostModel costModel;
+    private ForkJoinPool pool;
+    private int parallelThreshold;
+    private int uniqueCountPrecision;
+    private int sharingThreshold;
+    private double dictionaryLiveRatio = -1;
+    /**
+     * dimensions of the last tree loaded, their dictionaries are carried forward
+     */
+    private volatile List<? extends Dimension<?>> lastDimensions;
 
     public TreeBuilder( List<Dimension<?>> dimensions ) {
         this.dimensions = dimensions;
@@ -45,6 +66,77 @@ public class TreeBuilder<T> {
         return this;
     }
 
+    /**
+     * Chooses the type of every split node by estimated lookup cost and size instead of the hash fill factor,
+     * the choices are reported by {@link Tree#getStatistics()}.
+     */
+    public TreeBuilder<T> withCostModel( NodeCostModel costModel ) {
+        this.costModel = costModel;
+
+        return this;
+    }
+
+    /**
+     * Builds independent subtrees in parallel in the given pool, a dedicated pool keeps the build from
+     * starving the threads serving queries. The tree is the same as the one built sequentially.
+     *
+     * @param threshold subtrees over fewer selections are built sequentially
+     */
+    public TreeBuilder<T> withParallelBuild( ForkJoinPool pool, int threshold ) {
+        this.pool = pool;
+        this.parallelThreshold = threshold;
+
+        return this;
+    }
+
+    public TreeBuilder<T> withParallelBuild( ForkJoinPool pool ) {
+        return withParallelBuild( pool, DEFAULT_PARALLEL_THRESHOLD );
+    }
+
+    /**
+     * Estimates the distinct values per dimension the hash fill factor is computed against with a
+     * {@link CardinalitySketch} of 2^precision bytes per dimension instead of a set of all the values,
+     * the counts are reported by {@link Tree#getStatistics()}. Counts are exact by default.
+     */
+    public TreeBuilder<T> withUniqueCountSketch( int precision ) {
+        this.uniqueCountPrecision = CardinalitySketch.checkPrecision( precision );
+
+        return this;
+    }
+
+    public TreeBuilder<T> withUniqueCountSketch() {
+        return withUniqueCountSketch( DEFAULT_SKETCH_PRECISION );
+    }
+
+    /**
+     * Keeps a fingerprint of every subtree built from at least {@code minRows} rows, so that
+     * {@link #load(List, Tree)} reuses the subtrees of the previous tree built from the same rows instead of
+     * building them again. Selection ids carry over from the previous tree, the ids of removed selections stay
+     * unused until more than half of them are gone, then the tree is built without sharing.
+     * Fingerprints are 128-bit hashes of the rows, not a row by row comparison.
+     */
+    public TreeBuilder<T> withStructuralSharing( int minRows ) {
+        this.sharingThreshold = minRows;
+
+        return this;
+    }
+
+    /**
+     * Carries the {@link StringDimension} dictionaries of the last loaded tree forward: a load only appends
+     * the new strings, the strings already known keep their ids across versions. Once less than
+     * {@code minLiveRatio} of the strings of a dictionary are used by the last loaded data, the next load
+     * compacts it by starting a new one, which changes the ids.
+     */
+    public TreeBuilder<T> withStableDictionaries( double minLiveRatio ) {
+        this.dictionaryLiveRatio = minLiveRatio;
+
+        return this;
+    }
+
+    public TreeBuilder<T> withStableDictionaries() {
+        return withStableDictionaries( DEFAULT_DICTIONARY_LIVE_RATIO );
+    }
+
     public TreeBuilder<T> withMaxTraceListCount( int maxTraceListCount ) {
         this.maxTraceListCount = maxTraceListCount;
 
@@ -63,12 +155,123 @@ public class TreeBuilder<T> {
         return this;
     }
 
+    /**
+     * Caches results of {@link Tree#find(List)} / {@link Tree#find(List, QueryContext)} by encoded query.
+     * The cache is shared by the trees loaded by this builder and invalidated on every load.
+     *
+     * @param name          cache name for the micrometer cache meters
+     * @param maximumWeight bound on the encoded query values plus selection ids kept, about 8 bytes each
+     */
+    public TreeBuilder<T> withCache( String name, long maximumWeight ) {
+        this.cache = new QueryCache<>( name, maximumWeight, IntStream.range( 0, dimensions.size() ).toArray(), ids -> ids.length );
+
+        return this;
+    }
+
+    /**
+     * Caches the nodes a query reaches once the given dimensions are evaluated, keyed by the values of these
+     * dimensions only. A find then starts from the cached nodes and walks the remaining subtrees.
+     * Works best with stable dimensions the tree splits on first (high priority), while the dimensions
+     * varying per request stay out of the key. Invalidated on every load, see {@link #withCache(String, long)}.
+     *
+     * @param name          cache name for the micrometer cache meters
+     * @param maximumWeight bound on the encoded prefix values plus nodes kept, about 8 bytes each
+     * @param dimensions    names of the prefix dimensions
+     */
+    public TreeBuilder<T> withPrefixCache( String name, long maximumWeight, String... dimensions ) {
+        var indexes = new int[dimensions.length];
+        for( var i = 0; i < dimensions.length; i++ ) {
+            var dimension = dimensions[i];
+            indexes[i] = IntStream.range( 0, this.dimensions.size() )
+                .filter( d -> this.dimensions.get( d ).name.equals( dimension ) )
+                .findFirst()
+                .orElseThrow( () -> new IllegalArgumentException( "unknown dimension " + dimension ) );
+        }
+        this.prefixCache = new QueryCache<>( name, maximumWeight, indexes, nodes -> nodes.length );
+
+        return this;
+    }
+
     public final Tree<T> load( List<Tree.ValueData<T>> data ) {
-        var clonedDimensions = Lists.map( dimensions, Dimension::cloneAndReset );
+        return load( data, null );
+    }
+
+    /**
+     * @param previous tree loaded before by this builder, see {@link #withStructuralSharing(int)}
+     */
+    public final Tree<T> load( List<Tree.ValueData<T>> data, Tree<T> previous ) {
+        var tree = build( data, previous );
+        publish( tree );
+
+        return tree;
+    }
+
+    /**
+     * Loads a tree that does not take over the caches and dictionaries of this builder until it is published,
+     * so a build finishing late cannot take them from a newer tree.
+     */
+    Tree<T> build( List<Tree.ValueData<T>> data, Tree<T> previous ) {
+        var clonedDimensions = cloneDimensions();
         var tree = new Tree<T>( clonedDimensions, hashFillFactor, maxTraceListCount, preFilters );
         tree.fullDebug = fullDebug;
-        tree.load( data );
+        tree.cache = cache;
+        tree.prefixCache = prefixCache;
+        tree.costModel = costModel;
+        tree.pool = pool;
+        tree.parallelThreshold = parallelThreshold;
+        tree.uniqueCountPrecision = uniqueCountPrecision;
+        tree.sharingThreshold = sharingThreshold;
+        tree.load( data, previous );
 
         return tree;
     }
+
+    /**
+     * Makes the tree the one served by the caches and the one the next load carries the dictionaries over from.
+     * The tree is immutable from now on, see {@link Tree#load(List)}.
+     */
+    void publish( Tree<T> tree ) {
+        tree.publish();
+        tree.takeCaches();
+        if( dictionaryLiveRatio >= 0 ) lastDimensions = tree.dimensions;
+    }
+
+    private List<Dimension<?>> cloneDimensions() {
+        var last = lastDimensions;
+        if( dictionaryLiveRatio < 0 || last == null ) return Lists.map( dimensions, Dimension::cloneAndReset );
+
+        var result = new ArrayList<Dimension<?>>( dimensions.size() );
+        for( var i = 0; i < dimensions.size(); i++ ) {
+            result.add( last.get( i ) instanceof StringDimension sd && sd.liveRatio() >= dictionaryLiveRatio
+                ? sd.cloneAndKeepDictionary()
+                : dimensions.get( i ).cloneAndReset() );
+        }
+        return result;
+    }
+
+    /**
+     * Loads a tree taking edits of single selections, see {@link IncrementalTree}.
+     *
+     * @param mergeThreshold number of edited selections that starts a merge into a new main tree
+     * @param executor       runs the merges
+     */
+    public final IncrementalTree<T> loadIncremental( List<Tree.ValueData<T>> data, int mergeThreshold, Executor executor ) {
+        return new IncrementalTree<>( this, dimensions, data, mergeThreshold, executor );
+    }
+
+    /**
+     * Opens a tree saved by {@link TreeSnapshot#write(CompiledTree, SelectionCodec, Path)} instead of building it.
+     */
+    public final CompiledTree<T> loadSnapshot( Path path, SelectionCodec<T> codec ) {
+        return TreeSnapshot.read( path, dimensions, codec );
+    }
+
+    /**
+     * Memory-maps a tree saved by {@link TreeSnapshot#write(CompiledTree, SelectionCodec, Path)}.
+     *
+     * @see TreeSnapshot#map(Path, List, SelectionCodec)
+     */
+    public final OffHeapTree<T> mapSnapshot( Path path, SelectionCodec<T> codec ) {
+        return TreeSnapshot.map( path, dimensions, codec );
+    }
 }
@@ -0,0 +1,251 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) Open Application Platform Authors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package oap.tree;
+
+import java.util.List;
+
+import static oap.tree.CompiledTree.ARRAY;
+import static oap.tree.CompiledTree.HASH;
+import static oap.tree.CompiledTree.LEAF;
+import static oap.tree.CompiledTree.NODE;
+import static oap.tree.CompiledTree.SET_AND;
+import static oap.tree.CompiledTree.SET_NOT;
+import static oap.tree.CompiledTree.SET_OR;
+import static oap.tree.CompiledTree.SPARSE_HASH;
+
+/**
+ * Read access to the columns of a compiled tree and the find over them, shared by the heap arrays of
+ * {@link CompiledTree} and the buffers of {@link OffHeapTree}.
+ *
+ * @see CompiledTree for the meaning of the columns
+ */
+abstract class TreeColumns {
+    abstract int nodeCount();
+
+    abstract byte kind( int n );
+
+    abstract int dimension( int n );
+
+    abstract long value( int n );
+
+    abstract int left( int n );
+
+    abstract int right( int n );
+
+    abstract int equal( int n );
+
+    abstract int any( int n );
+
+    abstract int offset( int n );
+
+    abstract int length( int n );
+
+    abstract int leafSelection( int i );
+
+    abstract int hashChild( int i );
+
+    abstract long hashKey( int i );
+
+    abstract byte setOperation( int s );
+
+    abstract int setChild( int s );
+
+    abstract int setCardinality( int s );
+
+    abstract int setIndex( int i );
+
+    abstract long setIndexValue( int i );
+
+    final <T> void find( List<? extends Dimension<?>> dimensions, QueryContext<T> context ) {
+        if( nodeCount() == 0 ) return;
+
+        var query = context.query;
+        var lengths = context.lengths;
+
+        context.pushNode( 0 );
+        while( context.nodeStackSize > 0 ) {
+            var n = context.popNode();
+
+            switch( kind( n ) ) {
+                case LEAF -> {
+                    for( int i = offset( n ), end = i + length( n ); i < end; i++ )
+                        context.add( leafSelection( i ) );
+                }
+                case NODE -> {
+                    context.pushNode( any( n ) );
+                    var d = dimension( n );
+                    var qLength = lengths[d];
+                    if( qLength == 0 ) continue;
+
+                    var qValue = query[d];
+                    var nodeValue = value( n );
+                    if( dimensions.get( d ).isSetQuery() ) {
+                        var from = context.from;
+                        var to = context.to < 0 ? qLength : context.to;
+                        var split = Dimension.lowerBound( qValue, from, to, nodeValue );
+                        var isEqual = split < to && qValue[split] == nodeValue;
+
+                        if( split > from ) pushNode( context, left( n ), d, from, split );
+                        if( isEqual ) context.pushNode( equal( n ) );
+                        var rightFrom = isEqual ? split + 1 : split;
+                        if( rightFrom < to ) pushNode( context, right( n ), d, rightFrom, to );
+                        continue;
+                    }
+
+                    var direction = dimensions.get( d ).direction( qValue, qLength, nodeValue );
+                    if( ( direction & Dimension.Direction.LEFT ) > 0 ) context.pushNode( left( n ) );
+                    if( ( direction & Dimension.Direction.EQUAL ) > 0 ) context.pushNode( equal( n ) );
+                    if( ( direction & Dimension.Direction.RIGHT ) > 0 ) context.pushNode( right( n ) );
+                }
+                case ARRAY -> {
+                    context.pushNode( any( n ) );
+                    var d = dimension( n );
+                    var qLength = lengths[d];
+                    if( qLength == 0 ) continue;
+
+                    var first = offset( n );
+                    var matches = match( ( int ) value( n ), first, length( n ), query[d], qLength, context );
+                    for( var i = 0; i < matches; i++ ) context.pushNode( setChild( first + context.setMatches[i] ) );
+                }
+                case HASH -> {
+                    context.pushNode( any( n ) );
+                    var d = dimension( n );
+                    var qValue = query[d];
+                    var qLength = lengths[d];
+                    var first = offset( n );
+                    var size = length( n );
+                    for( var i = 0; i < qLength; i++ ) {
+                        var index = qValue[i];
+                        if( index >= 0 && index < size ) context.pushNode( hashChild( first + ( int ) index ) );
+                    }
+                }
+                case SPARSE_HASH -> {
+                    context.pushNode( any( n ) );
+                    var d = dimension( n );
+                    var qValue = query[d];
+                    var qLength = lengths[d];
+                    var first = offset( n );
+                    var keys = ( int ) value( n );
+                    var size = length( n );
+                    for( var i = 0; i < qLength; i++ ) {
+                        var slot = searchHashKeys( keys, size, qValue[i] );
+                        if( slot >= 0 ) context.pushNode( hashChild( first + slot ) );
+                    }
+                }
+                default -> throw new IllegalStateException( "Unknown node kind " + kind( n ) );
+            }
+        }
+    }
+
+    private <T> void pushNode( QueryContext<T> context, int child, int d, int from, int to ) {
+        if( child >= 0 && kind( child ) == NODE && dimension( child ) == d ) context.pushNode( child, from, to );
+        else context.pushNode( child );
+    }
+
+    /**
+     * {@link ArraySetIndex#match(long[], int, int[], int[])} over the serialized index of an array node.
+     *
+     * @return number of matching sets, their indexes relative to {@code first} are the first entries of
+     * {@link QueryContext#setMatches}
+     */
+    private <T> int match( int header, int first, int size, long[] qValue, int qLength, QueryContext<T> context ) {
+        context.ensureSetScratch( size );
+        var hits = context.setHits;
+        var matches = context.setMatches;
+
+        var valueFrom = setIndex( header );
+        var valueEnd = valueFrom + setIndex( header + 1 );
+        var offsets = header + 4 - valueFrom;
+
+        var touched = 0;
+        var position = valueFrom;
+        for( var i = 0; i < qLength && position < valueEnd; i++ ) {
+            position = lowerBoundSetIndexValues( position, valueEnd, qValue[i] );
+            if( position == valueEnd || setIndexValue( position ) != qValue[i] ) continue;
+
+            for( int p = setIndex( offsets + position ), end = setIndex( offsets + position + 1 ); p < end; p++ ) {
+                var s = setIndex( p );
+                if( hits[s]++ == 0 ) matches[touched++] = s;
+            }
+        }
+
+        var found = 0;
+        for( var i = 0; i < touched; i++ ) {
+            var s = matches[i];
+            switch( setOperation( first + s ) ) {
+                case SET_OR -> {
+                    matches[found++] = s;
+                    hits[s] = 0;
+                }
+                case SET_AND -> {
+                    if( hits[s] == setCardinality( first + s ) ) matches[found++] = s;
+                    hits[s] = 0;
+                }
+                case SET_NOT -> {
+                    // reset with the complement below
+                }
+                default -> throw new IllegalStateException( "Unknown Operation type " + setOperation( first + s ) );
+            }
+        }
+        for( int p = setIndex( header + 2 ), end = p + setIndex( header + 3 ); p < end; p++ ) {
+            var s = setIndex( p );
+            if( hits[s] == 0 ) matches[found++] = s;
+            else hits[s] = 0;
+        }
+        return found;
+    }
+
+    /**
+     * @see Dimension#lowerBound(long[], int, int, long)
+     */
+    private int lowerBoundSetIndexValues( int from, int to, long key ) {
+        var low = from;
+        var high = to;
+        while( low < high ) {
+            var mid = ( low + high ) >>> 1;
+            if( setIndexValue( mid ) < key ) low = mid + 1;
+            else high = mid;
+        }
+        return low;
+    }
+
+    /**
+     * Binary search over {@code size} sorted keys starting at {@code from}.
+     *
+     * @return position of the key relative to {@code from}, -1 if there is none
+     */
+    private int searchHashKeys( int from, int size, long key ) {
+        int low = 0;
+        int high = size - 1;
+        while( low <= high ) {
+            var mid = ( low + high ) >>> 1;
+            var k = hashKey( from + mid );
+            if( k < key ) low = mid + 1;
+            else if( k > key ) high = mid - 1;
+            else return mid;
+        }
+        return -1;
+    }
+}
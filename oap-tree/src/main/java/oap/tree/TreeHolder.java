@@ -0,0 +1,145 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) Open Application Platform Authors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package oap.tree;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.Metrics;
+import io.micrometer.core.instrument.Timer;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.Closeable;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Supplier;
+
+/**
+ * Publishes the current version of a tree rebuilt in the background.
+ * <p>
+ * A rebuild loads the data from the supplier into a new tree, sharing the subtrees of the current one if
+ * the builder is set {@link TreeBuilder#withStructuralSharing(int)}, and swaps it in with a single atomic set,
+ * a query takes the tree from {@link #get()} once and finishes on that version even if a newer one is
+ * published meanwhile. A rebuild started earlier never replaces a newer version, nor takes over the caches
+ * and the dictionaries of the builder, these follow the published tree. Published trees are immutable,
+ * {@link Tree#setPreFilter(boolean)} and {@link Tree#load(List)} throw {@link IllegalStateException}.
+ * <p>
+ * Meters: {@code tree.rebuild} timer, {@code tree.rebuild.failures} counter and
+ * {@code tree.version} gauge, tagged with the holder name, until the holder is closed.
+ */
+@Slf4j
+public final class TreeHolder<T> implements Closeable {
+    private final String name;
+    private final TreeBuilder<T> builder;
+    private final Supplier<List<Tree.ValueData<T>>> data;
+    private final Executor executor;
+    private final AtomicReference<Version<T>> current;
+    private final AtomicLong started = new AtomicLong();
+    private final Timer rebuildTimer;
+    private final Counter rebuildFailures;
+    private final Gauge versionGauge;
+
+    /**
+     * The holder starts with an empty tree, version 0.
+     */
+    public TreeHolder( String name, TreeBuilder<T> builder, Supplier<List<Tree.ValueData<T>>> data, Executor executor ) {
+        this.name = name;
+        this.builder = builder;
+        this.data = data;
+        this.executor = executor;
+        this.current = new AtomicReference<>( new Version<>( 0, builder.load( List.of() ) ) );
+
+        rebuildTimer = Metrics.timer( "tree.rebuild", "name", name );
+        rebuildFailures = Metrics.counter( "tree.rebuild.failures", "name", name );
+        versionGauge = Gauge.builder( "tree.version", this, TreeHolder::getVersion )
+            .tag( "name", name )
+            .register( Metrics.globalRegistry );
+    }
+
+    public Tree<T> get() {
+        return current.get().tree;
+    }
+
+    public long getVersion() {
+        return current.get().version;
+    }
+
+    /**
+     * @return the tree published by this rebuild, or the newer one published by a rebuild started later
+     */
+    public CompletableFuture<Tree<T>> rebuild() {
+        var version = started.incrementAndGet();
+        return CompletableFuture.supplyAsync( () -> build( version ), executor );
+    }
+
+    /**
+     * Removes the meters, the version gauge keeps the holder reachable from the global registry otherwise.
+     */
+    @Override
+    public void close() {
+        Metrics.globalRegistry.remove( rebuildTimer );
+        Metrics.globalRegistry.remove( rebuildFailures );
+        Metrics.globalRegistry.remove( versionGauge );
+    }
+
+    private Tree<T> build( long version ) {
+        var sample = Timer.start();
+        try {
+            var tree = builder.build( data.get(), get() );
+            sample.stop( rebuildTimer );
+
+            var published = publish( new Version<>( version, tree ) );
+            log.debug( "{}: version {} built, published version {}", name, version, published.version );
+            return published.tree;
+        } catch( RuntimeException e ) {
+            rebuildFailures.increment();
+            log.error( "{}: rebuild of version {} failed", name, version, e );
+            throw e;
+        }
+    }
+
+    /**
+     * Publishes the version unless a newer one is, only a published tree takes over the caches and dictionaries.
+     */
+    private synchronized Version<T> publish( Version<T> next ) {
+        var previous = current.get();
+        if( next.version < previous.version ) return previous;
+
+        builder.publish( next.tree );
+        current.set( next );
+        return next;
+    }
+
+    private static final class Version<T> {
+        private final long version;
+        private final Tree<T> tree;
+
+        private Version( long version, Tree<T> tree ) {
+            this.version = version;
+            this.tree = tree;
+        }
+    }
+}
@@ -0,0 +1,483 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) Open Application Platform Authors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package oap.tree;
+
+import oap.util.Lists;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+import static java.nio.file.StandardOpenOption.READ;
+import static java.nio.file.StandardOpenOption.WRITE;
+
+/**
+ * Versioned binary image of a {@link CompiledTree}: dimension dictionaries, pre-filters, node columns and selections.
+ * <p>
+ * Layout: a fixed header with the section directory, a metadata block (dimensions, {@link StringDimension} dictionaries,
+ * {@link EnumDimension} names, pre-filters) and 8-byte aligned little-endian column sections. Opening a snapshot maps
+ * the file and bulk-copies the columns, no tree building is involved.
+ */
+public final class TreeSnapshot {
+    public static final int VERSION = 4;
+
+    static final int MAGIC = 0x4F415054;
+
+    static final int KIND = 0;
+    static final int DIMENSION = 1;
+    static final int VALUE = 2;
+    static final int LEFT = 3;
+    static final int RIGHT = 4;
+    static final int EQUAL = 5;
+    static final int ANY = 6;
+    static final int OFFSET = 7;
+    static final int LENGTH = 8;
+    static final int LEAF_SELECTIONS = 9;
+    static final int HASH_CHILDREN = 10;
+    static final int HASH_KEYS = 11;
+    static final int SET_OPERATION = 12;
+    static final int SET_CHILD = 13;
+    static final int SET_CARDINALITY = 14;
+    static final int SET_INDEX = 15;
+    static final int SET_INDEX_VALUES = 16;
+    static final int SELECTION_OFFSETS = 17;
+    static final int SELECTION_BYTES = 18;
+    static final int SECTIONS = 19;
+
+    static final int HEADER_SIZE = Integer.BYTES * 3 + Long.BYTES * 2 + SECTIONS * Long.BYTES * 2;
+
+    private static final byte LONG_DIMENSION = 'L';
+    private static final byte STRING_DIMENSION = 'S';
+    private static final byte ENUM_DIMENSION = 'E';
+    private static final byte BOOLEAN_DIMENSION = 'B';
+    private static final byte DENSE_BITS = 'W';
+    private static final byte SPARSE_BITS = 'V';
+
+    private TreeSnapshot() {
+    }
+
+    /**
+     * Writes the snapshot into a temporary file next to {@code path} and atomically moves it in place.
+     */
+    public static <T> void write( CompiledTree<T> tree, SelectionCodec<T> codec, Path path ) {
+        try {
+            var metadata = metadata( tree );
+
+            var selectionOffsets = new long[tree.selections.size() + 1];
+            var selectionBytes = new ByteArrayOutputStream();
+            for( var i = 0; i < tree.selections.size(); i++ ) {
+                var bytes = codec.encode( tree.selections.get( i ) );
+                selectionBytes.write( bytes );
+                selectionOffsets[i + 1] = selectionOffsets[i] + bytes.length;
+            }
+
+            var sections = columns( tree, false );
+            sections[SELECTION_OFFSETS] = longs( selectionOffsets, false );
+            sections[SELECTION_BYTES] = ByteBuffer.wrap( selectionBytes.toByteArray() );
+
+            var header = ByteBuffer.allocate( HEADER_SIZE ).order( ByteOrder.LITTLE_ENDIAN );
+            header.putInt( MAGIC ).putInt( VERSION ).putInt( SECTIONS );
+            var position = align( HEADER_SIZE );
+            header.putLong( position ).putLong( metadata.length );
+            position = align( position + metadata.length );
+            for( var section : sections ) {
+                header.putLong( position ).putLong( section.remaining() );
+                position = align( position + section.remaining() );
+            }
+            header.flip();
+
+            var parent = path.toAbsolutePath().getParent();
+            Files.createDirectories( parent );
+            var tmp = Files.createTempFile( parent, path.getFileName().toString(), ".tmp" );
+            try {
+                try( var channel = FileChannel.open( tmp, WRITE ) ) {
+                    write( channel, header, 0 );
+                    position = align( HEADER_SIZE );
+                    write( channel, ByteBuffer.wrap( metadata ), position );
+                    position = align( position + metadata.length );
+                    for( var section : sections ) {
+                        var size = section.remaining();
+                        write( channel, section, position );
+                        position = align( position + size );
+                    }
+                    channel.force( true );
+                }
+                Files.move( tmp, path, REPLACE_EXISTING, ATOMIC_MOVE );
+            } finally {
+                Files.deleteIfExists( tmp );
+            }
+        } catch( IOException e ) {
+            throw new UncheckedIOException( e );
+        }
+    }
+
+    /**
+     * Opens a snapshot written by {@link #write(CompiledTree, SelectionCodec, Path)} into heap arrays.
+     *
+     * @param dimensions the same dimension definitions the snapshot was built with, they are cloned and
+     *                   their dictionaries are restored from the snapshot
+     */
+    public static <T> CompiledTree<T> read( Path path, List<Dimension<?>> dimensions, SelectionCodec<T> codec ) {
+        try( var channel = FileChannel.open( path, READ ) ) {
+            var sections = sections( channel );
+            var metadata = new Metadata<>( sections, dimensions, codec );
+
+            return new CompiledTree<>( metadata.dimensions, metadata.preFilters, metadata.preFilter,
+                toBytes( sections[KIND] ), toInts( sections[DIMENSION] ), toLongs( sections[VALUE] ),
+                toInts( sections[LEFT] ), toInts( sections[RIGHT] ), toInts( sections[EQUAL] ), toInts( sections[ANY] ),
+                toInts( sections[OFFSET] ), toInts( sections[LENGTH] ),
+                toInts( sections[LEAF_SELECTIONS] ), toInts( sections[HASH_CHILDREN] ),
+                toLongs( sections[HASH_KEYS] ),
+                toBytes( sections[SET_OPERATION] ), toInts( sections[SET_CHILD] ), toInts( sections[SET_CARDINALITY] ),
+                toInts( sections[SET_INDEX] ), toLongs( sections[SET_INDEX_VALUES] ),
+                metadata.selections );
+        } catch( IOException e ) {
+            throw new UncheckedIOException( e );
+        }
+    }
+
+    /**
+     * Opens a snapshot written by {@link #write(CompiledTree, SelectionCodec, Path)} without copying the columns:
+     * the returned tree reads the memory-mapped file directly, only the selections are decoded onto the heap.
+     *
+     * @see #read(Path, List, SelectionCodec)
+     */
+    public static <T> OffHeapTree<T> map( Path path, List<Dimension<?>> dimensions, SelectionCodec<T> codec ) {
+        try( var channel = FileChannel.open( path, READ ) ) {
+            var sections = sections( channel );
+            var metadata = new Metadata<>( sections, dimensions, codec );
+
+            return new OffHeapTree<>( metadata.dimensions, metadata.preFilters, metadata.preFilter, sections, metadata.selections );
+        } catch( IOException e ) {
+            throw new UncheckedIOException( e );
+        }
+    }
+
+    /**
+     * Node columns of the tree in the snapshot layout, selection sections are left empty.
+     *
+     * @param direct allocate the buffers outside of the heap
+     */
+    static ByteBuffer[] columns( CompiledTree<?> tree, boolean direct ) {
+        var sections = new ByteBuffer[SECTIONS];
+        sections[KIND] = bytes( tree.kind, direct );
+        sections[DIMENSION] = ints( tree.dimension, direct );
+        sections[VALUE] = longs( tree.value, direct );
+        sections[LEFT] = ints( tree.left, direct );
+        sections[RIGHT] = ints( tree.right, direct );
+        sections[EQUAL] = ints( tree.equal, direct );
+        sections[ANY] = ints( tree.any, direct );
+        sections[OFFSET] = ints( tree.offset, direct );
+        sections[LENGTH] = ints( tree.length, direct );
+        sections[LEAF_SELECTIONS] = ints( tree.leafSelections, direct );
+        sections[HASH_CHILDREN] = ints( tree.hashChildren, direct );
+        sections[HASH_KEYS] = longs( tree.hashKeys, direct );
+        sections[SET_OPERATION] = bytes( tree.setOperation, direct );
+        sections[SET_CHILD] = ints( tree.setChild, direct );
+        sections[SET_CARDINALITY] = ints( tree.setCardinality, direct );
+        sections[SET_INDEX] = ints( tree.setIndex, direct );
+        sections[SET_INDEX_VALUES] = longs( tree.setIndexValues, direct );
+        return sections;
+    }
+
+    /**
+     * Everything but the node columns, restored on the heap.
+     */
+    private static final class Metadata<T> {
+        private final List<Dimension<?>> dimensions;
+        private final boolean preFilter;
+        private final List<Tree.PreFilter> preFilters;
+        private final Selections<T> selections;
+
+        private Metadata( ByteBuffer[] sections, List<Dimension<?>> dimensions, SelectionCodec<T> codec ) throws IOException {
+            var metadata = sections[SECTIONS];
+            var bytes = new byte[metadata.remaining()];
+            metadata.duplicate().get( bytes );
+            var in = new DataInputStream( new ByteArrayInputStream( bytes ) );
+
+            this.dimensions = Lists.map( dimensions, Dimension::cloneAndReset );
+            readDimensions( in, this.dimensions );
+            preFilter = in.readBoolean();
+            preFilters = readPreFilters( in, this.dimensions );
+            var selectionCount = in.readInt();
+
+            var selectionOffsets = toLongs( sections[SELECTION_OFFSETS] );
+            var selectionBytes = sections[SELECTION_BYTES].duplicate().order( ByteOrder.BIG_ENDIAN );
+            var values = new Object[selectionCount];
+            for( var i = 0; i < selectionCount; i++ ) {
+                var length = ( int ) ( selectionOffsets[i + 1] - selectionOffsets[i] );
+                selectionBytes.position( ( int ) selectionOffsets[i] );
+                values[i] = codec.decode( selectionBytes, length );
+            }
+            selections = new Selections<>( values );
+        }
+    }
+
+    /**
+     * Maps every section of the snapshot, the metadata block is returned as the last element.
+     */
+    static ByteBuffer[] sections( FileChannel channel ) throws IOException {
+        var size = channel.size();
+        if( size < HEADER_SIZE ) throw new IllegalArgumentException( "not a tree snapshot, size " + size );
+
+        var header = channel.map( FileChannel.MapMode.READ_ONLY, 0, HEADER_SIZE ).order( ByteOrder.LITTLE_ENDIAN );
+        var magic = header.getInt();
+        if( magic != MAGIC ) throw new IllegalArgumentException( "not a tree snapshot, magic " + Integer.toHexString( magic ) );
+        var version = header.getInt();
+        if( version != VERSION )
+            throw new IllegalStateException( "unsupported tree snapshot version " + version + ", expected " + VERSION );
+        var sectionCount = header.getInt();
+        if( sectionCount != SECTIONS ) throw new IllegalStateException( "corrupted tree snapshot, sections " + sectionCount );
+
+        var result = new ByteBuffer[SECTIONS + 1];
+        result[SECTIONS] = map( channel, header.getLong(), header.getLong(), size );
+        for( var i = 0; i < SECTIONS; i++ ) {
+            result[i] = map( channel, header.getLong(), header.getLong(), size );
+        }
+        return result;
+    }
+
+    private static ByteBuffer map( FileChannel channel, long position, long length, long size ) throws IOException {
+        if( position < 0 || length < 0 || position + length > size || length > Integer.MAX_VALUE )
+            throw new IllegalStateException( "corrupted tree snapshot, section " + position + "+" + length + " of " + size );
+        return channel.map( FileChannel.MapMode.READ_ONLY, position, length ).order( ByteOrder.LITTLE_ENDIAN );
+    }
+
+    private static byte[] metadata( CompiledTree<?> tree ) throws IOException {
+        var bytes = new ByteArrayOutputStream();
+        var out = new DataOutputStream( bytes );
+
+        out.writeInt( tree.dimensions.size() );
+        for( var dimension : tree.dimensions ) {
+            writeString( out, dimension.name );
+            out.writeInt( dimension.operationType != null ? dimension.operationType.ordinal() : -1 );
+
+            if( dimension instanceof StringDimension stringDimension ) {
+                out.writeByte( STRING_DIMENSION );
+                var dictionary = stringDimension.dictionary();
+                out.writeInt( dictionary.size() );
+                for( var value : dictionary ) {
+                    out.writeLong( stringDimension.idOf( value ) );
+                    writeString( out, value );
+                }
+            } else if( dimension instanceof EnumDimension<?> enumDimension ) {
+                out.writeByte( ENUM_DIMENSION );
+                var names = enumDimension.names();
+                out.writeInt( names.length );
+                for( var name : names ) writeString( out, name );
+            } else if( dimension instanceof LongDimension ) {
+                out.writeByte( LONG_DIMENSION );
+            } else if( dimension instanceof BooleanDimension ) {
+                out.writeByte( BOOLEAN_DIMENSION );
+            } else {
+                throw new IllegalArgumentException( "unsupported dimension type " + dimension.getClass() );
+            }
+        }
+
+        out.writeBoolean( tree.preFilter );
+        out.writeInt( tree.preFilters.size() );
+        for( var pf : tree.preFilters ) {
+            out.writeInt( pf.index );
+            writeBits( out, pf.bitSet );
+            writeBits( out, pf.notBitSet );
+        }
+
+        out.writeInt( tree.selections.size() );
+        out.flush();
+
+        return bytes.toByteArray();
+    }
+
+    private static void readDimensions( DataInputStream in, List<? extends Dimension<?>> dimensions ) throws IOException {
+        var count = in.readInt();
+        if( count != dimensions.size() )
+            throw new IllegalArgumentException( "snapshot has " + count + " dimensions, but " + dimensions.size() + " given" );
+
+        for( var i = 0; i < count; i++ ) {
+            var dimension = dimensions.get( i );
+            var name = readString( in );
+            var operationType = in.readInt();
+            var type = in.readByte();
+
+            if( !dimension.name.equals( name )
+                || operationType != ( dimension.operationType != null ? dimension.operationType.ordinal() : -1 ) )
+                throw new IllegalArgumentException( "snapshot dimension " + i + " '" + name + "' does not match '" + dimension.name + "'" );
+
+            switch( type ) {
+                case STRING_DIMENSION -> {
+                    if( !( dimension instanceof StringDimension stringDimension ) )
+                        throw new IllegalArgumentException( "dimension '" + name + "' must be String" );
+                    var size = in.readInt();
+                    for( var v = 0; v < size; v++ ) {
+                        var id = in.readLong();
+                        var value = readString( in );
+                        var restored = stringDimension.intern( value );
+                        if( restored != id )
+                            throw new IllegalStateException( "dimension '" + name + "': '" + value + "' restored as " + restored + ", expected " + id );
+                    }
+                }
+                case ENUM_DIMENSION -> {
+                    if( !( dimension instanceof EnumDimension<?> enumDimension ) )
+                        throw new IllegalArgumentException( "dimension '" + name + "' must be Enum" );
+                    var names = new String[in.readInt()];
+                    for( var v = 0; v < names.length; v++ ) names[v] = readString( in );
+                    if( !Arrays.equals( names, enumDimension.names() ) )
+                        throw new IllegalArgumentException( "dimension '" + name + "': enum constants changed, snapshot "
+                            + Arrays.toString( names ) + ", given " + Arrays.toString( enumDimension.names() ) );
+                }
+                case LONG_DIMENSION -> {
+                    if( !( dimension instanceof LongDimension ) ) throw new IllegalArgumentException( "dimension '" + name + "' must be Long" );
+                }
+                case BOOLEAN_DIMENSION -> {
+                    if( !( dimension instanceof BooleanDimension ) ) throw new IllegalArgumentException( "dimension '" + name + "' must be Boolean" );
+                }
+                default -> throw new IllegalStateException( "corrupted tree snapshot, dimension type " + type );
+            }
+        }
+    }
+
+    private static List<Tree.PreFilter> readPreFilters( DataInputStream in, List<? extends Dimension<?>> dimensions ) throws IOException {
+        var count = in.readInt();
+        var result = new ArrayList<Tree.PreFilter>( count );
+        for( var i = 0; i < count; i++ ) {
+            var index = in.readInt();
+            var bitSet = readBits( in );
+            var notBitSet = readBits( in );
+            result.add( new Tree.PreFilter( dimensions.get( index ), index, bitSet, notBitSet ) );
+        }
+        return result;
+    }
+
+    /**
+     * Sorted values if that is smaller than the words.
+     */
+    private static void writeBits( DataOutputStream out, java.util.BitSet bits ) throws IOException {
+        var words = ( bits.length() + Long.SIZE - 1 ) >>> 6;
+        if( bits.cardinality() * Integer.BYTES < words * Long.BYTES ) {
+            out.writeByte( SPARSE_BITS );
+            out.writeInt( bits.cardinality() );
+            for( var value : bits.stream().toArray() ) out.writeInt( value );
+        } else {
+            out.writeByte( DENSE_BITS );
+            var longs = bits.toLongArray();
+            out.writeInt( longs.length );
+            for( var word : longs ) out.writeLong( word );
+        }
+    }
+
+    private static oap.util.BitSet readBits( DataInputStream in ) throws IOException {
+        var type = in.readByte();
+        var bitSet = new oap.util.BitSet();
+        switch( type ) {
+            case SPARSE_BITS -> {
+                var count = in.readInt();
+                for( var i = 0; i < count; i++ ) bitSet.set( in.readInt() );
+            }
+            case DENSE_BITS -> {
+                var words = in.readInt();
+                for( var i = 0; i < words; i++ ) {
+                    for( var word = in.readLong(); word != 0; word &= word - 1 ) bitSet.set( i * Long.SIZE + Long.numberOfTrailingZeros( word ) );
+                }
+            }
+            default -> throw new IllegalStateException( "corrupted tree snapshot, bits type " + type );
+        }
+        return bitSet;
+    }
+
+    private static void writeString( DataOutputStream out, String value ) throws IOException {
+        var bytes = value.getBytes( StandardCharsets.UTF_8 );
+        out.writeInt( bytes.length );
+        out.write( bytes );
+    }
+
+    private static String readString( DataInputStream in ) throws IOException {
+        var bytes = new byte[in.readInt()];
+        in.readFully( bytes );
+        return new String( bytes, StandardCharsets.UTF_8 );
+    }
+
+    private static void write( FileChannel channel, ByteBuffer buffer, long position ) throws IOException {
+        var p = position;
+        while( buffer.hasRemaining() ) p += channel.write( buffer, p );
+    }
+
+    private static long align( long position ) {
+        return ( position + 7 ) & ~7L;
+    }
+
+    private static ByteBuffer allocate( int size, boolean direct ) {
+        return ( direct ? ByteBuffer.allocateDirect( size ) : ByteBuffer.allocate( size ) ).order( ByteOrder.LITTLE_ENDIAN );
+    }
+
+    private static ByteBuffer bytes( byte[] array, boolean direct ) {
+        var buffer = allocate( array.length, direct );
+        buffer.duplicate().put( array );
+        return buffer;
+    }
+
+    private static ByteBuffer ints( int[] array, boolean direct ) {
+        var buffer = allocate( array.length * Integer.BYTES, direct );
+        buffer.asIntBuffer().put( array );
+        return buffer;
+    }
+
+    private static ByteBuffer longs( long[] array, boolean direct ) {
+        var buffer = allocate( array.length * Long.BYTES, direct );
+        buffer.asLongBuffer().put( array );
+        return buffer;
+    }
+
+    private static byte[] toBytes( ByteBuffer buffer ) {
+        var array = new byte[buffer.remaining()];
+        buffer.duplicate().get( array );
+        return array;
+    }
+
+    private static int[] toInts( ByteBuffer buffer ) {
+        var array = new int[buffer.remaining() / Integer.BYTES];
+        buffer.duplicate().order( ByteOrder.LITTLE_ENDIAN ).asIntBuffer().get( array );
+        return array;
+    }
+
+    private static long[] toLongs( ByteBuffer buffer ) {
+        var array = new long[buffer.remaining() / Long.BYTES];
+        buffer.duplicate().order( ByteOrder.LITTLE_ENDIAN ).asLongBuffer().get( array );
+        return array;
+    }
+}
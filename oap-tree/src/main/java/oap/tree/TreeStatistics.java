@@ -0,0 +1,95 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) Open Application Platform Authors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package oap.tree;
+
+import lombok.ToString;
+
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Shape of a tree collected while it is built: the unique counts per dimension, the node types chosen
+ * per split and their estimated size, see {@link Tree#getStatistics()}.
+ */
+@ToString
+public class TreeStatistics {
+    public final Map<NodeType, AtomicLong> nodes = new EnumMap<>( NodeType.class );
+    /**
+     * slots of the hash node tables, including the empty slots of dense tables
+     */
+    public final AtomicLong hashSlots = new AtomicLong();
+    /**
+     * approximate heap size of the nodes, selections excluded
+     */
+    public final AtomicLong estimatedBytes = new AtomicLong();
+    /**
+     * subtrees reused from the previous tree, see {@link TreeBuilder#withStructuralSharing(int)},
+     * the node counts and sizes above cover the new nodes only
+     */
+    public final AtomicLong sharedNodes = new AtomicLong();
+    /**
+     * rows of the reused subtrees
+     */
+    public final AtomicLong sharedRows = new AtomicLong();
+    /**
+     * distinct values per dimension name the hash fill factor is computed against
+     */
+    public final Map<String, Long> uniqueCount = new LinkedHashMap<>();
+    /**
+     * the unique counts are {@link CardinalitySketch} estimates
+     */
+    public boolean uniqueCountEstimated;
+
+    public TreeStatistics() {
+        for( var type : NodeType.values() ) nodes.put( type, new AtomicLong() );
+    }
+
+    public long getNodeCount( NodeType type ) {
+        return nodes.get( type ).get();
+    }
+
+    void add( NodeType type, long bytes ) {
+        nodes.get( type ).incrementAndGet();
+        estimatedBytes.addAndGet( bytes );
+    }
+
+    public enum NodeType {
+        LEAF,
+        ARRAY,
+        /**
+         * binary split on a value: left, equal and right children
+         */
+        BINARY,
+        /**
+         * hash node with a table indexed by value
+         */
+        DENSE_HASH,
+        /**
+         * hash node with sorted values searched by binary search
+         */
+        SORTED_HASH
+    }
+}
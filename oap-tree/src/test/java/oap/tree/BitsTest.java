@@ -0,0 +1,106 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) Open Application Platform Authors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package oap.tree;
+
+import org.testng.annotations.Test;
+
+import java.util.BitSet;
+import java.util.Random;
+
+import static oap.tree.Dimension.ARRAY_STRING;
+import static oap.tree.Tree.ArrayOperation.OR;
+import static oap.tree.Tree.a;
+import static oap.tree.Tree.l;
+import static oap.tree.Tree.v;
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class BitsTest {
+    private static BitSet bitSet( int... values ) {
+        var bitSet = new BitSet();
+        for( var value : values ) bitSet.set( value );
+        return bitSet;
+    }
+
+    private static void assertSame( Bits bits, BitSet expected ) {
+        assertThat( bits.cardinality() ).isEqualTo( expected.cardinality() );
+        assertThat( bits.length() ).isEqualTo( expected.length() );
+        assertThat( bits.isEmpty() ).isEqualTo( expected.isEmpty() );
+        assertThat( bits.stream().toArray() ).containsExactly( expected.stream().toArray() );
+        assertThat( bits.toBitSet() ).isEqualTo( expected );
+        for( var i = expected.nextSetBit( 0 ); i >= 0; i = expected.nextSetBit( i + 1 ) ) {
+            assertThat( bits.get( i ) ).isTrue();
+            assertThat( bits.get( i + 1 ) ).isEqualTo( expected.get( i + 1 ) );
+        }
+        assertThat( bits.get( -1 ) ).isFalse();
+        assertThat( bits.get( expected.length() ) ).isFalse();
+        assertThat( bits.get( 1L << 40 ) ).isFalse();
+    }
+
+    @Test
+    public void testChoice() {
+        assertThat( Bits.of( new BitSet() ) ).isSameAs( Bits.EMPTY );
+        assertThat( Bits.of( bitSet( 1, 5, 63 ) ) ).isInstanceOf( DenseBits.class );
+        assertThat( Bits.of( bitSet( 3, 5_000_000 ) ) ).isInstanceOf( CompressedBits.class );
+
+        var sparse = Bits.of( bitSet( 3, 5_000_000, 2_000_000_000 ) );
+        assertThat( sparse.sizeInBytes() ).isLessThan( 200 );
+        assertSame( sparse, bitSet( 3, 5_000_000, 2_000_000_000 ) );
+    }
+
+    @Test
+    public void testContainers() {
+        var random = new Random( 1 );
+        var expected = new BitSet();
+        // array
+        for( var i = 0; i < 100; i++ ) expected.set( random.nextInt( 1 << 16 ) );
+        // bitmap
+        for( var i = 0; i < 20000; i++ ) expected.set( ( 1 << 16 ) + random.nextInt( 1 << 16 ) );
+        // runs
+        expected.set( 5 << 16, ( 5 << 16 ) + 30000 );
+        expected.set( ( 5 << 16 ) + 40000, ( 5 << 16 ) + 40010 );
+        expected.set( ( 6 << 16 ) - 1 );
+        expected.set( Integer.MAX_VALUE - 1 );
+
+        var bits = CompressedBits.of( expected );
+        assertSame( bits, expected );
+        assertThat( bits.sizeInBytes() ).isLessThan( new DenseBits( expected.toLongArray() ).sizeInBytes() );
+        assertThat( CompressedBits.sizeInBytes( expected ) ).isEqualTo( bits.sizeInBytes() );
+        assertThat( DenseBits.sizeInBytes( expected ) ).isEqualTo( new DenseBits( expected.toLongArray() ).sizeInBytes() );
+        assertSame( new DenseBits( expected.toLongArray() ), expected );
+    }
+
+    @Test
+    public void testPreFilter() {
+        final Tree<String> tree = Tree
+            .<String>build( ARRAY_STRING( "d1", true ) )
+            .withPreFilters( true )
+            .load( l( v( "1", l( a( OR, "s1" ) ) ), v( "2", l( a( OR, "s2", "s3" ) ) ) ) );
+
+        var preFilter = tree.getPreFilters().get( 0 );
+        assertThat( preFilter.bitSet.cardinality() ).isEqualTo( 3 );
+        assertThat( preFilter.notBitSet.isEmpty() ).isTrue();
+        assertThat( tree.find( l( l( "s3" ) ) ) ).containsOnly( "2" );
+        assertThat( tree.find( l( l( "s4" ) ) ) ).isEmpty();
+    }
+}
@@ -0,0 +1,101 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) Open Application Platform Authors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package oap.tree;
+
+import org.testng.annotations.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static oap.tree.Dimension.ARRAY_LONG;
+import static oap.tree.Dimension.LONG;
+import static oap.tree.Dimension.OperationType.CONTAINS;
+import static oap.tree.Tree.ArrayOperation.AND;
+import static oap.tree.Tree.ArrayOperation.OR;
+import static oap.tree.Tree.a;
+import static oap.tree.Tree.v;
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class BuildColumnsTest {
+    private static final List<Dimension<?>> DIMENSIONS = List.of( LONG( "d1", CONTAINS, null ), ARRAY_LONG( "d2", null ) );
+
+    private static BuildColumns columns() {
+        var data = List.of(
+            v( "s0", 5L, a( OR, 1L, 2L ) ),
+            v( "s1", null, a( AND, 3L ) ),
+            v( "s2", 3L, null ),
+            v( "s3", 7L, a( OR, 1L, 2L ) ),
+            v( "s4", 5L, a( OR ) ),
+            v( "s5", 3L, a( AND, 3L ) )
+        );
+        return new BuildColumns( DIMENSIONS, data, new int[] { 0, 1, 2, 3, 4, 5 } );
+    }
+
+    private static int[] rows( BuildColumns columns, int[] bounds, int bucket ) {
+        var rows = Arrays.copyOfRange( columns.rows, bounds[bucket], bounds[bucket + 1] );
+        Arrays.sort( rows );
+        return rows;
+    }
+
+    @Test
+    public void testUnique() {
+        var columns = columns();
+
+        assertThat( columns.unique( 0, 0, 6 ) ).containsExactly( 3L, 5L, 7L );
+        assertThat( columns.unique( 0, 1, 2 ) ).isEmpty();
+        assertThat( columns.uniqueArrays( 1, 0, 6 ) ).isEqualTo( 2 );
+    }
+
+    @Test
+    public void testPartitionValue() {
+        var columns = columns();
+
+        var bounds = columns.partition( 0, 0, 6, 5L );
+
+        assertThat( bounds ).containsExactly( 0, 1, 3, 5, 6 );
+        assertThat( rows( columns, bounds, BuildColumns.ANY ) ).containsExactly( 1 );
+        assertThat( rows( columns, bounds, BuildColumns.LEFT ) ).containsExactly( 2, 5 );
+        assertThat( rows( columns, bounds, BuildColumns.EQUAL ) ).containsExactly( 0, 4 );
+        assertThat( rows( columns, bounds, BuildColumns.RIGHT ) ).containsExactly( 3 );
+
+        var inner = columns.partition( 0, bounds[BuildColumns.LEFT], bounds[BuildColumns.LEFT + 1], new long[] { 3L } );
+        assertThat( inner ).containsExactly( 1, 1, 3 );
+        assertThat( rows( columns, bounds, BuildColumns.ANY ) ).containsExactly( 1 );
+        assertThat( rows( columns, bounds, BuildColumns.RIGHT ) ).containsExactly( 3 );
+    }
+
+    @Test
+    public void testPartitionArrays() {
+        var columns = columns();
+        var keys = new ArrayList<Tree.Array>();
+
+        var bounds = columns.partition( 1, 0, 6, keys );
+
+        assertThat( keys ).containsExactly( a( OR, 1L, 2L ), a( AND, 3L ) );
+        assertThat( rows( columns, bounds, BuildColumns.ANY ) ).containsExactly( 2, 4 );
+        assertThat( rows( columns, bounds, 1 ) ).containsExactly( 0, 3 );
+        assertThat( rows( columns, bounds, 2 ) ).containsExactly( 1, 5 );
+    }
+}
@@ -0,0 +1,61 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) Open Application Platform Authors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package oap.tree;
+
+import org.testng.annotations.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.assertj.core.api.Assertions.withinPercentage;
+
+public class CardinalitySketchTest {
+    @Test
+    public void testEstimate() {
+        for( var count : new int[] { 0, 1, 10, 1000, 100_000, 1_000_000 } ) {
+            var sketch = new CardinalitySketch( 14 );
+            for( var i = 0; i < count; i++ ) {
+                sketch.add( ( long ) i );
+                sketch.add( ( long ) i );
+            }
+            assertThat( sketch.estimate() ).as( "count %d", count ).isCloseTo( count, withinPercentage( 3 ) );
+        }
+    }
+
+    @Test
+    public void testStrings() {
+        var sketch = new CardinalitySketch( 12 );
+        for( var i = 0; i < 50_000; i++ ) sketch.add( "value" + i % 20_000 );
+        sketch.add( null );
+
+        assertThat( sketch.estimate() ).isCloseTo( 20_001L, withinPercentage( 5 ) );
+    }
+
+    @Test
+    public void testPrecision() {
+        assertThatThrownBy( () -> new CardinalitySketch( CardinalitySketch.MAX_PRECISION + 1 ) )
+            .isInstanceOf( IllegalArgumentException.class );
+        assertThatThrownBy( () -> Tree.build( Dimension.LONG( "d", Dimension.OperationType.CONTAINS, null ) ).withUniqueCountSketch( 2 ) )
+            .isInstanceOf( IllegalArgumentException.class );
+    }
+}
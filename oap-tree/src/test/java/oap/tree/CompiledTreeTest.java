@@ -0,0 +1,98 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) Open Application Platform Authors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package oap.tree;
+
+import org.testng.annotations.Test;
+
+import static oap.tree.Dimension.ARRAY_LONG;
+import static oap.tree.Dimension.LONG;
+import static oap.tree.Dimension.OperationType.CONTAINS;
+import static oap.tree.Dimension.OperationType.GREATER_THEN;
+import static oap.tree.Dimension.STRING;
+import static oap.tree.Tree.ArrayOperation.AND;
+import static oap.tree.Tree.ArrayOperation.NOT;
+import static oap.tree.Tree.ArrayOperation.OR;
+import static oap.tree.Tree.a;
+import static oap.tree.Tree.l;
+import static oap.tree.Tree.v;
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class CompiledTreeTest {
+    @Test
+    public void testFind() {
+        final Tree<String> tree = Tree
+            .<String>build( LONG( "d1", CONTAINS, null ), STRING( "d2", CONTAINS, false ), LONG( "d3", GREATER_THEN, null ) )
+            .withHashFillFactor( 1 )
+            .load( l(
+                v( "1", 1L, "s1", 10L ),
+                v( "2", 2L, null, 20L ),
+                v( "3", 3L, "s3", null ),
+                v( "33", 3L, "s3", 30L )
+            ) );
+
+        var compiled = tree.compile();
+
+        assertThat( compiled.getNodeCount() ).isEqualTo( tree.getNodeCount() + tree.getLeafCount() );
+        assertThat( compiled.getSelectionCount() ).isEqualTo( 4 );
+
+        assertThat( compiled.find( l( 1L, "s1", 5L ) ) ).containsOnly( "1" );
+        assertThat( compiled.find( l( 1L, "s1", 10L ) ) ).isEmpty();
+        assertThat( compiled.find( l( 2L, "s1", 5L ) ) ).containsOnly( "2" );
+        assertThat( compiled.find( l( 3L, "s3", 5L ) ) ).containsOnly( "3", "33" );
+        assertThat( compiled.find( l( 3L, "s3", 30L ) ) ).containsOnly( "3" );
+        assertThat( compiled.find( l( l( 1L, 2L, 3L ), "s3", 0L ) ) ).containsOnly( "2", "3", "33" );
+    }
+
+    @Test
+    public void testArray() {
+        final Tree<String> tree = Tree
+            .<String>build( ARRAY_LONG( "d1", null ), LONG( "d2", CONTAINS, null ) )
+            .load( l(
+                v( "1", l( a( OR, 1L, 2L ), 1L ) ),
+                v( "2", l( a( AND, 1L, 2L ), 1L ) ),
+                v( "3", l( a( NOT, 3L ), 1L ) )
+            ) );
+
+        var compiled = tree.compile();
+        var context = compiled.newQueryContext();
+
+        assertThat( compiled.find( l( 1L, 1L ), context ).toSet() ).containsOnly( "1", "3" );
+        assertThat( compiled.find( l( l( 1L, 2L ), 1L ), context ).toSet() ).containsOnly( "1", "2", "3" );
+        assertThat( compiled.find( l( l( 1L, 1L, 3L ), 1L ), context ).toSet() ).containsOnly( "1" );
+        assertThat( compiled.find( l( 3L, 1L ), context ).isEmpty() ).isTrue();
+    }
+
+    @Test
+    public void testEmpty() {
+        final Tree<String> tree = Tree
+            .<String>build( LONG( "d1", CONTAINS, null ) )
+            .load( l() );
+
+        var compiled = tree.compile();
+
+        assertThat( compiled.getNodeCount() ).isZero();
+        assertThat( compiled.find( l( 1L ) ) ).isEmpty();
+    }
+}
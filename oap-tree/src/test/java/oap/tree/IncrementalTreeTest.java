@@ -0,0 +1,129 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) Open Application Platform Authors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package oap.tree;
+
+import org.testng.annotations.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.RejectedExecutionException;
+
+import static oap.tree.Dimension.LONG;
+import static oap.tree.Dimension.OperationType.CONTAINS;
+import static oap.tree.Dimension.STRING;
+import static oap.tree.Tree.l;
+import static oap.tree.Tree.v;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+public class IncrementalTreeTest {
+    private static final List<Tree.ValueData<String>> DATA = l(
+        v( "1", 1L, "a" ),
+        v( "2", 2L, "b" ),
+        v( "3", 1L, null ),
+        v( "3", 2L, "c" )
+    );
+
+    private static TreeBuilder<String> builder() {
+        return Tree.build( LONG( "d1", CONTAINS, null ), STRING( "d2", CONTAINS, false ) );
+    }
+
+    @Test
+    public void testEdits() {
+        var tree = builder().loadIncremental( DATA, 100, Runnable::run );
+        assertThat( tree.find( l( 1L, "a" ) ) ).containsOnly( "1", "3" );
+
+        tree.add( v( "4", 1L, "a" ) );
+        tree.add( v( "2", 1L, "a" ) );
+        assertThat( tree.find( l( 1L, "a" ) ) ).containsOnly( "1", "2", "3", "4" );
+        assertThat( tree.find( l( 2L, "b" ) ) ).containsOnly( "2" );
+
+        tree.remove( "3" );
+        assertThat( tree.find( l( 1L, "a" ) ) ).containsOnly( "1", "2", "4" );
+        assertThat( tree.exists( l( 2L, "c" ) ) ).isFalse();
+
+        tree.update( "1", l( v( "1", 2L, "c" ) ) );
+        assertThat( tree.find( l( 1L, "a" ) ) ).containsOnly( "2", "4" );
+        assertThat( tree.find( l( 2L, "c" ) ) ).containsOnly( "1" );
+        assertThat( tree.exists( l( 2L, "c" ) ) ).isTrue();
+        assertThat( tree.getDeltaSize() ).isEqualTo( 4 );
+
+        var context = tree.newQueryContext();
+        assertThat( tree.find( l( 1L, "a" ), context ) ).containsOnly( "2", "4" );
+        assertThat( tree.find( l( 2L, "a" ), context ) ).isEmpty();
+        assertThat( tree.exists( l( 1L, "a" ), context ) ).isTrue();
+        assertThat( tree.exists( l( 2L, "a" ), context ) ).isFalse();
+        assertThat( tree.getMain().find( l( 1L, "a" ) ) ).containsOnly( "1", "3" );
+
+        assertThatThrownBy( () -> tree.update( "1", l( v( "2", 1L, "a" ) ) ) ).isInstanceOf( IllegalArgumentException.class );
+    }
+
+    @Test
+    public void testMerge() {
+        var tasks = new ArrayList<Runnable>();
+        var tree = builder().loadIncremental( DATA, 2, tasks::add );
+
+        tree.add( v( "4", 1L, "a" ) );
+        assertThat( tasks ).isEmpty();
+        tree.remove( "1" );
+        assertThat( tasks ).hasSize( 1 );
+
+        tree.add( v( "5", 1L, "a" ) );
+        tree.add( v( "4", 2L, "b" ) );
+        assertThat( tasks ).hasSize( 1 );
+        tasks.remove( 0 ).run();
+
+        assertThat( tree.getMain().find( l( 1L, "a" ) ) ).containsOnly( "3", "4" );
+        assertThat( tree.getDeltaSize() ).isEqualTo( 2 );
+        assertThat( tree.find( l( 1L, "a" ) ) ).containsOnly( "3", "4", "5" );
+        assertThat( tree.find( l( 2L, "b" ) ) ).containsOnly( "2", "4" );
+
+        tree.merge();
+        tasks.remove( 0 ).run();
+        assertThat( tree.getDeltaSize() ).isZero();
+        assertThat( tree.getMain().find( l( 1L, "a" ) ) ).containsOnly( "3", "4", "5" );
+        assertThat( tree.find( l( 2L, "b" ) ) ).containsOnly( "2", "4" );
+    }
+
+    @Test
+    public void testRejectedMerge() {
+        var tasks = new ArrayList<Runnable>();
+        var rejected = new boolean[] { true };
+        var tree = builder().loadIncremental( DATA, 1, task -> {
+            if( rejected[0] ) throw new RejectedExecutionException( "shutdown" );
+            tasks.add( task );
+        } );
+
+        tree.add( v( "4", 1L, "a" ) );
+        assertThat( tree.find( l( 1L, "a" ) ) ).containsOnly( "1", "3", "4" );
+        assertThat( tasks ).isEmpty();
+
+        rejected[0] = false;
+        tree.remove( "1" );
+        assertThat( tasks ).hasSize( 1 );
+        tasks.remove( 0 ).run();
+        assertThat( tree.getDeltaSize() ).isZero();
+        assertThat( tree.getMain().find( l( 1L, "a" ) ) ).containsOnly( "3", "4" );
+    }
+}
@@ -0,0 +1,147 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) Open Application Platform Authors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package oap.tree;
+
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static oap.tree.Dimension.ARRAY_LONG;
+import static oap.tree.Dimension.LONG;
+import static oap.tree.Dimension.OperationType.CONTAINS;
+import static oap.tree.Dimension.OperationType.GREATER_THEN;
+import static oap.tree.Dimension.STRING;
+import static oap.tree.Tree.ArrayOperation.AND;
+import static oap.tree.Tree.ArrayOperation.OR;
+import static oap.tree.Tree.a;
+import static oap.tree.Tree.l;
+import static oap.tree.Tree.v;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+public class OffHeapTreeTest {
+    private Path dir;
+
+    @BeforeMethod
+    public void beforeMethod() throws IOException {
+        dir = Files.createTempDirectory( "tree-offheap" );
+    }
+
+    @AfterMethod
+    public void afterMethod() throws IOException {
+        try( var files = Files.walk( dir ) ) {
+            for( var file : files.sorted( Comparator.reverseOrder() ).toList() ) Files.delete( file );
+        }
+    }
+
+    @Test
+    public void testFind() {
+        var builder = Tree.<String>build( STRING( "s", CONTAINS, false ), LONG( "l", GREATER_THEN, null ), ARRAY_LONG( "a", null ) );
+        var tree = builder.load( l(
+            v( "1", "s1", 10L, a( OR, 1L, 2L ) ),
+            v( "2", "s2", 20L, a( AND, 1L, 2L ) ),
+            v( "3", "s1", null, null )
+        ) );
+
+        var path = dir.resolve( "tree.bin" );
+        TreeSnapshot.write( tree.compile(), SelectionCodec.STRING, path );
+
+        for( var offHeap : List.of( OffHeapTree.of( tree.compile() ), builder.mapSnapshot( path, SelectionCodec.STRING ) ) ) {
+            assertThat( offHeap.getNodeCount() ).isEqualTo( tree.compile().getNodeCount() );
+            assertThat( offHeap.getOffHeapSize() ).isGreaterThan( 0 );
+
+            assertThat( offHeap.find( l( "s1", 5L, 1L ) ) ).containsOnly( "1", "3" );
+            assertThat( offHeap.find( l( "s1", 15L, 1L ) ) ).containsOnly( "3" );
+            assertThat( offHeap.find( l( "s2", 15L, l( 1L, 2L ) ) ) ).containsOnly( "2" );
+            assertThat( offHeap.find( l( "s2", 15L, 1L ) ) ).isEmpty();
+            assertThat( offHeap.find( l( "s3", 25L, 1L ) ) ).isEmpty();
+
+            offHeap.close();
+            assertThatThrownBy( () -> offHeap.find( l( "s1", 5L, 1L ) ) ).isInstanceOf( IllegalStateException.class );
+            offHeap.close();
+        }
+    }
+
+    @Test
+    public void testConcurrentClose() throws InterruptedException, ExecutionException {
+        var builder = Tree.<String>build( STRING( "s", CONTAINS, false ), ARRAY_LONG( "a", null ) );
+        var tree = builder.load( l(
+            v( "1", "s1", a( OR, 1L, 2L ) ),
+            v( "2", "s2", a( AND, 1L, 2L ) )
+        ) );
+        var path = dir.resolve( "tree.bin" );
+        TreeSnapshot.write( tree.compile(), SelectionCodec.STRING, path );
+
+        for( var offHeap : List.of( OffHeapTree.of( tree.compile() ), builder.mapSnapshot( path, SelectionCodec.STRING ) ) ) {
+            var executor = Executors.newFixedThreadPool( 4 );
+            try {
+                var started = new CountDownLatch( 4 );
+                var queries = new ArrayList<Future<Integer>>();
+                for( var i = 0; i < 4; i++ ) {
+                    queries.add( executor.submit( () -> {
+                        var context = offHeap.newQueryContext();
+                        started.countDown();
+                        var count = 0;
+                        try {
+                            while( true ) {
+                                assertThat( offHeap.find( l( "s1", 1L ), context ).toSet() ).containsOnly( "1" );
+                                count++;
+                            }
+                        } catch( IllegalStateException e ) {
+                            return count;
+                        }
+                    } ) );
+                }
+
+                started.await();
+                Thread.sleep( 20 );
+                offHeap.close();
+
+                for( var query : queries ) assertThat( query.get() ).isGreaterThan( 0 );
+                assertThat( offHeap.isReleased() ).isTrue();
+            } finally {
+                executor.shutdownNow();
+            }
+        }
+    }
+
+    @Test
+    public void testEmpty() {
+        var tree = Tree.<String>build( LONG( "l", CONTAINS, null ) ).load( List.of() );
+
+        assertThat( OffHeapTree.of( tree.compile() ).find( l( 1L ) ) ).isEmpty();
+    }
+}
@@ -27,6 +27,8 @@ package oap.tree;
 import oap.util.Sets;
 import org.testng.annotations.Test;
 
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Set;
 
 import static oap.tree.Dimension.ARRAY_LONG;
@@ -105,6 +107,9 @@ public class TreeArrayTest {
         assertThat( tree.find( l( l( 2L, 3L ) ) ) ).isEmpty();
         assertThat( tree.find( l( l( 1L, 2L ) ) ) ).containsOnly( "1" );
         assertThat( tree.find( l( l( 1L, 2L, 3L ) ) ) ).containsOnly( "1" );
+        assertThat( tree.find( l( l( 2L, 2L, 2L ) ) ) ).isEmpty();
+        assertThat( tree.find( l( l( 2L, 3L, 1L, 2L ) ) ) ).containsOnly( "1" );
+        assertThat( tree.find( l( l( 2L, 2L ) ), new ArrayList<>() ) ).isEmpty();
     }
 
     @Test
@@ -257,6 +262,32 @@ public class TreeArrayTest {
         assertThat( tree.getMaxDepth() ).isEqualTo( 2 );
     }
 
+    @Test
+    public void testArraySetIndex() {
+        final Tree<String> tree = Tree
+            .<String>build( ARRAY_LONG( "d1", null ) )
+            .load( l(
+                v( "or", l( a( OR, 1L, 5L ) ) ),
+                v( "and", l( a( AND, 1L, 2L, 3L ) ) ),
+                v( "not", l( a( NOT, 2L, 7L ) ) ),
+                v( "not2", l( a( NOT, 9L ) ) ),
+                v( "and2", l( a( AND, 5L ) ) )
+            ) );
+
+        assertThat( ( ( Tree.Node ) tree.root ).index.size() ).isEqualTo( 5 );
+
+        var context = tree.newQueryContext();
+        for( var query : List.of( l( l( 1L, 2L, 3L ) ), l( l( 5L ) ), l( l( 4L ) ), l( l( 3L, 2L, 1L, 9L ) ), l( l( 7L, 5L ) ) ) ) {
+            var expected = tree.find( query, new ArrayList<>() );
+            assertThat( tree.find( query, context ).toSet() ).isEqualTo( expected );
+        }
+        assertThat( tree.find( l( l( 1L, 2L, 3L ) ) ) ).containsOnly( "or", "and", "not2" );
+        assertThat( tree.find( l( l( 5L ) ) ) ).containsOnly( "or", "and2", "not", "not2" );
+        assertThat( tree.find( l( l( 4L ) ) ) ).containsOnly( "not", "not2" );
+        assertThat( tree.findBatch( List.of( l( l( 7L, 9L ) ), l( l( 3L, 2L, 1L, 9L ) ) ) ) )
+            .containsExactly( Set.of(), Set.of( "or", "and" ) );
+    }
+
     @Test
     public void testEmptyFailed() {
         final Tree<String> tree = Tree
@@ -0,0 +1,112 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) Open Application Platform Authors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package oap.tree;
+
+import io.micrometer.core.instrument.Metrics;
+import org.testng.annotations.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static oap.tree.Dimension.LONG;
+import static oap.tree.Dimension.OperationType.CONTAINS;
+import static oap.tree.Tree.l;
+import static oap.tree.Tree.v;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+public class TreeHolderTest {
+    @Test
+    public void testRebuild() {
+        var data = new AtomicReference<List<Tree.ValueData<String>>>( l( v( "1", 1L ) ) );
+        var tasks = new ArrayList<Runnable>();
+        var holder = new TreeHolder<>( "holder-test", Tree.<String>build( LONG( "d1", CONTAINS, null ) ), data::get, tasks::add );
+
+        assertThat( holder.getVersion() ).isZero();
+        assertThat( holder.get().find( l( 1L ) ) ).isEmpty();
+
+        var first = holder.rebuild();
+        data.set( l( v( "2", 1L ) ) );
+        var second = holder.rebuild();
+        var inFlight = holder.get();
+
+        tasks.remove( 1 ).run();
+        assertThat( second.join().find( l( 1L ) ) ).containsOnly( "2" );
+        assertThat( holder.getVersion() ).isEqualTo( 2 );
+        assertThat( inFlight.find( l( 1L ) ) ).isEmpty();
+
+        tasks.remove( 0 ).run();
+        assertThat( first.join() ).isSameAs( second.join() );
+        assertThat( holder.getVersion() ).isEqualTo( 2 );
+        assertThat( holder.get().find( l( 1L ) ) ).containsOnly( "2" );
+        assertThat( Metrics.globalRegistry.find( "tree.version" ).tag( "name", "holder-test" ).gauge() ).isNotNull();
+
+        holder.close();
+        assertThat( Metrics.globalRegistry.find( "tree.version" ).tag( "name", "holder-test" ).gauge() ).isNull();
+        assertThat( Metrics.globalRegistry.find( "tree.rebuild" ).tag( "name", "holder-test" ).timer() ).isNull();
+    }
+
+    @Test
+    public void testStaleRebuildKeepsCache() {
+        var tasks = new ArrayList<Runnable>();
+        var builder = Tree.<String>build( LONG( "d1", CONTAINS, null ) ).withCache( "holder-cache", 1000 );
+        var holder = new TreeHolder<>( "holder-cache", builder, () -> l( v( "1", 1L ) ), tasks::add );
+
+        holder.rebuild();
+        holder.rebuild();
+        tasks.remove( 1 ).run();
+        tasks.remove( 0 ).run();
+
+        var tree = holder.get();
+        assertThat( holder.getVersion() ).isEqualTo( 2 );
+        assertThat( tree.cache.isOwner( tree ) ).isTrue();
+        assertThat( tree.find( l( 1L ) ) ).containsOnly( "1" );
+        assertThat( tree.cache.size() ).isEqualTo( 1 );
+    }
+
+    @Test
+    public void testPublishedTreeIsImmutable() {
+        var holder = new TreeHolder<>( "holder-immutable", Tree.<String>build( LONG( "d1", CONTAINS, null ) ),
+            () -> l( v( "1", 1L ) ), Runnable::run );
+        holder.rebuild().join();
+
+        var tree = holder.get();
+        assertThatThrownBy( () -> tree.load( l( v( "2", 1L ) ) ) ).isInstanceOf( IllegalStateException.class );
+        assertThatThrownBy( () -> tree.setPreFilter( true ) ).isInstanceOf( IllegalStateException.class );
+        assertThat( tree.find( l( 1L ) ) ).containsOnly( "1" );
+        holder.close();
+    }
+
+    @Test
+    public void testFailure() {
+        var holder = new TreeHolder<>( "holder-failure", Tree.<String>build( LONG( "d1", CONTAINS, null ) ),
+            () -> {
+                throw new IllegalStateException( "no data" );
+            }, Runnable::run );
+
+        assertThatThrownBy( () -> holder.rebuild().join() ).hasCauseInstanceOf( IllegalStateException.class );
+        assertThat( holder.getVersion() ).isZero();
+    }
+}
@@ -27,14 +27,18 @@ package oap.tree;
 import org.apache.commons.lang3.RandomUtils;
 import org.testng.annotations.Test;
 
+import java.lang.management.ManagementFactory;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Random;
 
 import static oap.benchmark.Benchmark.benchmark;
+import static oap.tree.Dimension.ARRAY_LONG;
 import static oap.tree.Dimension.LONG;
 import static oap.tree.Dimension.OperationType.CONTAINS;
 import static oap.tree.Dimension.STRING;
+import static org.assertj.core.api.Assertions.assertThat;
 
 public class TreePerformance {
     @Test
@@ -49,6 +53,42 @@ public class TreePerformance {
 //        benchmarkTree( 0.25, 100, 100, new int[] { /*1000, 10000, */100000 } );
     }
 
+    /**
+     * AND sets are matched by counting the set bits found in the query, a find with a reused context does not allocate.
+     */
+    @Test
+    public void arrayAnd() {
+        var random = new Random( 1 );
+        var data = new ArrayList<Tree.ValueData<String>>();
+        for( var i = 0; i < 2000; i++ ) {
+            var values = new ArrayList<Long>();
+            for( var v = 0; v < 5; v++ ) values.add( ( long ) random.nextInt( 200 ) );
+            data.add( Tree.v( "s" + i, Tree.l( new Tree.Array( values, Tree.ArrayOperation.AND ) ) ) );
+        }
+        var tree = Tree.<String>build( ARRAY_LONG( "d1", null ) ).load( data );
+
+        var queries = new ArrayList<List<?>>();
+        for( var i = 0; i < 1000; i++ ) {
+            var values = new ArrayList<Long>();
+            for( var v = 0; v < 50; v++ ) values.add( ( long ) random.nextInt( 200 ) );
+            queries.add( List.of( values ) );
+        }
+
+        var context = tree.newQueryContext();
+        var threads = ( com.sun.management.ThreadMXBean ) ManagementFactory.getThreadMXBean();
+        var requests = 20000;
+
+        benchmark( "array AND, sets = " + data.size(), requests, i -> tree.find( queries.get( i % queries.size() ), context ) )
+            .experiments( 5 ).run();
+
+        var before = threads.getThreadAllocatedBytes( Thread.currentThread().getId() );
+        for( var i = 0; i < requests; i++ ) tree.find( queries.get( i % queries.size() ), context );
+        var allocated = threads.getThreadAllocatedBytes( Thread.currentThread().getId() ) - before;
+
+        System.out.println( "array AND, allocated bytes per find = " + ( double ) allocated / requests );
+        assertThat( allocated / requests ).isZero();
+    }
+
     public void benchmarkTree( double fillFactor, int selections, int dimensions, int requests, double rate, boolean preFilter ) {
         var id = new ArrayList<Dimension<?>>();
 
@@ -0,0 +1,144 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) Open Application Platform Authors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package oap.tree;
+
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Comparator;
+import java.util.List;
+
+import static oap.tree.Dimension.ARRAY_LONG;
+import static oap.tree.Dimension.BOOLEAN;
+import static oap.tree.Dimension.ENUM;
+import static oap.tree.Dimension.LONG;
+import static oap.tree.Dimension.OperationType.CONTAINS;
+import static oap.tree.Dimension.OperationType.LESS_THEN;
+import static oap.tree.Dimension.STRING;
+import static oap.tree.Tree.ArrayOperation.NOT;
+import static oap.tree.Tree.ArrayOperation.OR;
+import static oap.tree.Tree.a;
+import static oap.tree.Tree.l;
+import static oap.tree.Tree.v;
+import static oap.tree.TreeTest.TestEnum.Test1;
+import static oap.tree.TreeTest.TestEnum.Test2;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+public class TreeSnapshotTest {
+    private Path dir;
+
+    private static List<Dimension<?>> dimensions() {
+        return List.of(
+            STRING( "s", CONTAINS, true ),
+            ENUM( "e", TreeTest.TestEnum.class, CONTAINS, null ),
+            LONG( "l", LESS_THEN, null ),
+            ARRAY_LONG( "a", null ),
+            BOOLEAN( "b", CONTAINS, null )
+        );
+    }
+
+    @BeforeMethod
+    public void beforeMethod() throws IOException {
+        dir = Files.createTempDirectory( "tree-snapshot" );
+    }
+
+    @AfterMethod
+    public void afterMethod() throws IOException {
+        try( var files = Files.walk( dir ) ) {
+            for( var file : files.sorted( Comparator.reverseOrder() ).toList() ) Files.delete( file );
+        }
+    }
+
+    @Test
+    public void testWriteRead() {
+        var builder = Tree.<String>build( dimensions() ).withPreFilters( true );
+        var tree = builder.load( l(
+            v( "1", "s1", Test1, 10L, a( OR, 1L, 2L ), true ),
+            v( "2", "s2", Test2, 20L, a( NOT, 1L ), null ),
+            v( "3", "s3", null, 30L, null, false ),
+            v( "33", "s3", Test1, null, a( OR, 3L ), true )
+        ) );
+
+        var path = dir.resolve( "tree.bin" );
+        TreeSnapshot.write( tree.compile(), SelectionCodec.STRING, path );
+
+        var snapshot = builder.loadSnapshot( path, SelectionCodec.STRING );
+
+        assertThat( snapshot.getNodeCount() ).isEqualTo( tree.compile().getNodeCount() );
+        assertThat( snapshot.getSelectionCount() ).isEqualTo( 4 );
+
+        for( var query : List.of(
+            l( "s1", Test1, 1L, 1L, true ),
+            l( "s2", Test2, 1L, 2L, false ),
+            l( "s3", Test1, 5L, 3L, true ),
+            l( "s3", Test2, 5L, 3L, false ),
+            l( "s4", Test1, 5L, 3L, true ),
+            l( l( "s1", "s3" ), Test1, 5L, l( 1L, 3L ), true ) ) ) {
+            assertThat( snapshot.find( query ) ).isEqualTo( tree.find( query ) );
+        }
+
+        assertThat( snapshot.find( l( "s3", Test1, 5L, 3L, true ) ) ).containsOnly( "33" );
+        assertThat( snapshot.find( l( "s3", Test1, 50L, 3L, false ) ) ).containsOnly( "3" );
+        assertThat( snapshot.find( l( "s4", Test1, 5L, 3L, true ) ) ).isEmpty();
+    }
+
+    @Test
+    public void testDimensionsMismatch() {
+        var tree = Tree.<String>build( dimensions() ).load( l( v( "1", "s1", Test1, 10L, a( OR, 1L ), true ) ) );
+
+        var path = dir.resolve( "tree.bin" );
+        TreeSnapshot.write( tree.compile(), SelectionCodec.STRING, path );
+
+        assertThatThrownBy( () -> TreeSnapshot.read( path, List.of( STRING( "s", CONTAINS, false ) ), SelectionCodec.STRING ) )
+            .isInstanceOf( IllegalArgumentException.class );
+    }
+
+    @Test
+    public void testVersion() throws IOException {
+        var tree = Tree.<Long>build( LONG( "d1", CONTAINS, null ) ).load( l( v( 1L, 1L ), v( 2L, 2L ) ) );
+
+        var path = dir.resolve( "tree.bin" );
+        TreeSnapshot.write( tree.compile(), SelectionCodec.LONG, path );
+        assertThat( TreeSnapshot.read( path, List.of( LONG( "d1", CONTAINS, null ) ), SelectionCodec.LONG ).find( l( 2L ) ) )
+            .containsOnly( 2L );
+
+        try( var channel = Files.newByteChannel( path, StandardOpenOption.WRITE ) ) {
+            channel.position( Integer.BYTES );
+            channel.write( ByteBuffer.allocate( Integer.BYTES ).order( ByteOrder.LITTLE_ENDIAN ).putInt( 0, TreeSnapshot.VERSION + 1 ) );
+        }
+
+        assertThatThrownBy( () -> TreeSnapshot.read( path, List.of( LONG( "d1", CONTAINS, null ) ), SelectionCodec.LONG ) )
+            .isInstanceOf( IllegalStateException.class )
+            .hasMessageContaining( "version" );
+    }
+}
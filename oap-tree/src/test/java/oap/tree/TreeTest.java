@@ -25,15 +25,21 @@
 package oap.tree;
 
 import com.google.common.base.Joiner;
+import io.micrometer.core.instrument.Metrics;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import oap.util.StringBits;
 import org.testng.annotations.Test;
 
 import java.util.ArrayList;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Optional;
+import java.util.Random;
 import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
 
 import static java.util.Arrays.asList;
+import static oap.tree.Dimension.ARRAY_LONG;
 import static oap.tree.Dimension.ENUM;
 import static oap.tree.Dimension.LONG;
 import static oap.tree.Dimension.OperationType.BETWEEN_INCLUSIVE;
@@ -45,6 +51,9 @@ import static oap.tree.Dimension.OperationType.LESS_THEN_OR_EQUAL_TO;
 import static oap.tree.Dimension.OperationType.NOT_CONTAINS;
 import static oap.tree.Dimension.PRIORITY_DEFAULT;
 import static oap.tree.Dimension.STRING;
+import static oap.tree.Tree.ArrayOperation.AND;
+import static oap.tree.Tree.ArrayOperation.OR;
+import static oap.tree.Tree.a;
 import static oap.tree.Tree.l;
 import static oap.tree.Tree.v;
 import static oap.tree.TreeTest.TestEnum.Test1;
@@ -53,6 +62,9 @@ import static oap.tree.TreeTest.TestEnum.Test3;
 import static oap.tree.TreeTest.TestEnum.Test4;
 import static oap.tree.TreeTest.TestEnum.UNKNOWN;
 import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.assertj.core.api.Assertions.entry;
+import static org.assertj.core.api.Assertions.withinPercentage;
 
 @SuppressWarnings( "checkstyle:MethodName" )
 public class TreeTest {
@@ -81,6 +93,21 @@ public class TreeTest {
         assertThat( tree.getMaxDepth() ).isEqualTo( 3 );
     }
 
+    @Test
+    public void testUnsortedQuery() {
+        final Tree<String> tree = Tree
+            .<String>build( LONG( "d1", CONTAINS, null ), STRING( "d2", CONTAINS, false ) )
+            .load( l( v( "1", 1L, "s1" ), v( "2", 2L, "s2" ), v( "3", 3L, "s3" ), v( "5", 5L, "s3" ), v( "7", 7L, "s1" ) ) );
+
+        var query = l( l( 7L, 3L, 1L, 3L, 9L ), l( "s3", "s1", "s3" ) );
+        assertThat( tree.find( query ) ).containsOnly( "1", "3", "7" );
+        assertThat( tree.find( query, tree.newQueryContext() ).toSet() ).containsOnly( "1", "3", "7" );
+        assertThat( tree.compile().find( query ) ).containsOnly( "1", "3", "7" );
+        assertThat( tree.find( query, new ArrayList<>() ) ).containsOnly( "1", "3", "7" );
+
+        assertThat( tree.getLongQuery( l( new long[] { 7L, 3L, 7L }, "s1" ) )[0] ).containsExactly( 3L, 7L );
+    }
+
     @Test
     public void testEmpty() {
         final Tree<String> tree = Tree
@@ -410,6 +437,165 @@ public class TreeTest {
         assertThat( tree.getMaxDepth() ).isEqualTo( 3 );
     }
 
+    @Test
+    public void testSparseHash() {
+        final Tree<String> tree = Tree
+            .<String>build( LONG( "d1", CONTAINS, null ) )
+            .withHashFillFactor( 0.5 )
+            .load( l( v( "1", -3L ), v( "2", 10L ), v( "3", 5_000_000L ), v( "4", 1L << 40 ), v( "5", ( Object ) null ) ) );
+
+        assertThat( tree.root ).isInstanceOf( Tree.HashNode.class );
+        assertThat( ( ( Tree.HashNode<String> ) tree.root ).keys ).containsExactly( -3L, 10L, 5_000_000L, 1L << 40 );
+
+        var compiled = tree.compile();
+        var offHeap = OffHeapTree.of( compiled );
+        for( var query : List.of( l( 5_000_000L ), l( l( 1L << 40, -3L, 7L ) ), l( 1L ) ) ) {
+            var expected = tree.find( query, new ArrayList<>() );
+            assertThat( tree.find( query ) ).isEqualTo( expected );
+            assertThat( compiled.find( query ) ).isEqualTo( expected );
+            assertThat( offHeap.find( query ) ).isEqualTo( expected );
+        }
+        assertThat( tree.find( l( 5_000_000L ) ) ).containsOnly( "3", "5" );
+        assertThat( tree.find( l( l( 1L << 40, -3L, 7L ) ) ) ).containsOnly( "1", "4", "5" );
+        assertThat( tree.find( l( 1L ) ) ).containsOnly( "5" );
+        assertThat( tree.findBatch( List.of( l( 10L ), l( ( 1L << 40 ) + 10 ) ) ) )
+            .containsExactly( Set.of( "2", "5" ), Set.of( "5" ) );
+    }
+
+    @Test
+    public void testCostModel() {
+        var data = l( v( "1", 1L, 10L ), v( "2", 2L, 5_000_000L ), v( "3", 3L, 1L << 40 ), v( "4", 2L, 10L ) );
+
+        final Tree<String> tree = Tree
+            .<String>build( LONG( "d1", CONTAINS, null ), LONG( "d2", CONTAINS, null ) )
+            .withHashFillFactor( 1 )
+            .withCostModel( NodeCostModel.DEFAULT )
+            .load( data );
+
+        var statistics = tree.getStatistics();
+        assertThat( statistics.getNodeCount( TreeStatistics.NodeType.DENSE_HASH ) ).isEqualTo( 1 );
+        assertThat( statistics.getNodeCount( TreeStatistics.NodeType.SORTED_HASH ) ).isEqualTo( 1 );
+        assertThat( statistics.getNodeCount( TreeStatistics.NodeType.BINARY ) ).isEqualTo( 2 );
+        assertThat( statistics.getNodeCount( TreeStatistics.NodeType.LEAF ) ).isEqualTo( 4 );
+        assertThat( statistics.hashSlots.get() ).isEqualTo( 6 );
+        assertThat( statistics.estimatedBytes.get() ).isPositive();
+
+        final Tree<String> binary = Tree
+            .<String>build( LONG( "d1", CONTAINS, null ), LONG( "d2", CONTAINS, null ) )
+            .withHashFillFactor( 1 )
+            .load( data );
+        assertThat( binary.getStatistics().getNodeCount( TreeStatistics.NodeType.BINARY ) ).isPositive();
+        assertThat( binary.getStatistics().getNodeCount( TreeStatistics.NodeType.DENSE_HASH ) ).isZero();
+
+        for( var query : List.of( l( 2L, 10L ), l( l( 1L, 2L ), l( 10L, 5_000_000L ) ), l( 3L, 1L << 40 ), l( 3L, 10L ) ) )
+            assertThat( tree.find( query ) ).isEqualTo( binary.find( query ) );
+        assertThat( tree.find( l( l( 1L, 2L ), l( 10L, 5_000_000L ) ) ) ).containsOnly( "1", "2", "4" );
+    }
+
+    @Test
+    public void testParallelBuild() {
+        var random = new Random( 1 );
+        var data = new ArrayList<Tree.ValueData<String>>();
+        for( var i = 0; i < 2000; i++ ) {
+            data.add( v( "s" + i,
+                random.nextInt( 5 ) == 0 ? null : ( long ) random.nextInt( 50 ),
+                "v" + random.nextInt( 20 ),
+                a( OR, ( long ) random.nextInt( 10 ), ( long ) random.nextInt( 10 ) ) ) );
+        }
+        var builder = Tree.<String>build( LONG( "d1", CONTAINS, null ), STRING( "d2", CONTAINS, false ), ARRAY_LONG( "d3", null ) );
+
+        var sequential = builder.load( data );
+        var pool = new ForkJoinPool( 4 );
+        try {
+            var parallel = builder.withParallelBuild( pool, 16 ).load( data );
+
+            assertThat( parallel.toString() ).isEqualTo( sequential.toString() );
+            assertThat( parallel.getNodeCount() ).isEqualTo( sequential.getNodeCount() );
+            assertThat( parallel.getStatistics().estimatedBytes.get() ).isEqualTo( sequential.getStatistics().estimatedBytes.get() );
+            var query = l( 7L, "v3", l( 1L, 2L ) );
+            assertThat( parallel.find( query ) ).isEqualTo( sequential.find( query ) ).isNotEmpty();
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    @Test
+    public void testUniqueCountSketch() {
+        var data = new ArrayList<Tree.ValueData<String>>();
+        for( var i = 0; i < 1000; i++ ) data.add( v( "s" + i, ( long ) i % 100, "v" + i ) );
+        var builder = Tree.<String>build( LONG( "d1", CONTAINS, null ), STRING( "d2", CONTAINS, false ) );
+
+        var exact = builder.load( data );
+        assertThat( exact.getStatistics().uniqueCount ).containsExactly( entry( "d1", 100L ), entry( "d2", 1000L ) );
+        assertThat( exact.getStatistics().uniqueCountEstimated ).isFalse();
+
+        var estimated = builder.withUniqueCountSketch().load( data );
+        assertThat( estimated.getStatistics().uniqueCount.get( "d1" ) ).isCloseTo( 100L, withinPercentage( 5 ) );
+        assertThat( estimated.getStatistics().uniqueCount.get( "d2" ) ).isCloseTo( 1000L, withinPercentage( 5 ) );
+        assertThat( estimated.getStatistics().uniqueCountEstimated ).isTrue();
+        assertThat( estimated.find( l( 7L, "v107" ) ) ).isEqualTo( exact.find( l( 7L, "v107" ) ) ).containsOnly( "s107" );
+    }
+
+    @Test
+    public void testStructuralSharing() {
+        var random = new Random( 1 );
+        var data = new ArrayList<Tree.ValueData<String>>();
+        for( var i = 0; i < 2000; i++ ) {
+            data.add( v( "s" + i, ( long ) random.nextInt( 50 ), ( long ) random.nextInt( 20 ),
+                a( OR, ( long ) random.nextInt( 10 ), ( long ) random.nextInt( 10 ) ) ) );
+        }
+        var builder = Tree.<String>build( LONG( "d1", CONTAINS, null ), LONG( "d2", CONTAINS, null ), ARRAY_LONG( "d3", null ) )
+            .withStructuralSharing( 4 );
+        var previous = builder.load( data );
+        assertThat( previous.getStatistics().sharedNodes.get() ).isZero();
+
+        data.set( 0, v( "s0", 7L, 3L, a( OR, 1L ) ) );
+        data.remove( 1 );
+        data.add( v( "new", 7L, 3L, a( OR, 2L ) ) );
+        var tree = builder.load( data, previous );
+        var fresh = Tree.<String>build( LONG( "d1", CONTAINS, null ), LONG( "d2", CONTAINS, null ), ARRAY_LONG( "d3", null ) )
+            .load( data );
+
+        assertThat( tree.getStatistics().sharedNodes.get() ).isPositive();
+        assertThat( tree.getStatistics().sharedRows.get() ).isGreaterThan( 1000 );
+        for( var i = 0; i < 200; i++ ) {
+            var query = l( ( long ) random.nextInt( 50 ), ( long ) random.nextInt( 20 ), l( ( long ) random.nextInt( 10 ) ) );
+            assertThat( tree.find( query ) ).isEqualTo( fresh.find( query ) );
+        }
+        assertThat( tree.find( l( 7L, 3L, l( 1L ) ) ) ).contains( "s0" );
+        assertThat( tree.find( l( 7L, 3L, l( 2L ) ) ) ).contains( "new" );
+
+        var next = builder.load( data, tree );
+        assertThat( next.getStatistics().sharedNodes.get() ).isEqualTo( 1 );
+        assertThat( next.toString() ).isEqualTo( tree.toString() );
+    }
+
+    @Test
+    public void testStableDictionaries() {
+        var builder = Tree.<String>build( STRING( "d1", CONTAINS, false ), LONG( "d2", CONTAINS, null ) ).withStableDictionaries( 0.5 );
+
+        var first = builder.load( l( v( "1", "a", 1L ), v( "2", "b", 1L ), v( "3", "c", 2L ) ) );
+        var second = builder.load( l( v( "3", "c", 2L ), v( "4", "d", 2L ), v( "5", "a", 1L ) ) );
+
+        var firstDictionary = ( StringDimension ) first.getDimensions().get( 0 );
+        var secondDictionary = ( StringDimension ) second.getDimensions().get( 0 );
+        for( var value : List.of( "a", "b", "c" ) )
+            assertThat( secondDictionary.idOf( value ) ).isEqualTo( firstDictionary.idOf( value ) );
+        assertThat( secondDictionary.idOf( "d" ) ).isEqualTo( 4 );
+
+        assertThat( first.find( l( "d", 2L ) ) ).isEmpty();
+        assertThat( first.find( l( "c", 2L ) ) ).containsOnly( "3" );
+        assertThat( second.find( l( "d", 2L ) ) ).containsOnly( "4" );
+        assertThat( second.find( l( "b", 1L ) ) ).isEmpty();
+
+        builder.load( l( v( "6", "e", 1L ) ) );
+        var compacted = builder.load( l( v( "7", "f", 1L ) ) );
+        var compactedDictionary = ( StringDimension ) compacted.getDimensions().get( 0 );
+        assertThat( compactedDictionary.idOf( "f" ) ).isEqualTo( 1 );
+        assertThat( compactedDictionary.idOf( "a" ) ).isEqualTo( StringBits.UNKNOWN );
+        assertThat( compacted.find( l( "f", 1L ) ) ).containsOnly( "7" );
+    }
+
     @Test
     public void testFindAny() {
         final Tree<String> tree = Tree
@@ -514,6 +700,239 @@ public class TreeTest {
         assertThat( tree.getMaxDepth() ).isEqualTo( 2 );
     }
 
+    @Test
+    public void testQueryContext() {
+        final Tree<String> tree = Tree
+            .<String>build( LONG( "d1", CONTAINS, null ), STRING( "d2", CONTAINS, false ) )
+            .withHashFillFactor( 1 )
+            .load( l( v( "1", 1L, "s1" ), v( "2", 2L, null ), v( "3", 3L, "s3" ), v( "33", 3L, "s3" ) ) );
+
+        var context = tree.newQueryContext();
+
+        assertThat( tree.find( l( 1L, "s1" ), context ).toSet() ).containsOnly( "1" );
+        assertThat( tree.find( l( 3L, "s3" ), context ).toSet() ).containsOnly( "3", "33" );
+        assertThat( tree.find( l( 5L, "s3" ), context ).isEmpty() ).isTrue();
+
+        var values = new ArrayList<Long>();
+        for( var i = 0L; i < 100; i++ ) values.add( i );
+        assertThat( tree.find( l( values, "s3" ), context ).toSet() ).containsOnly( "2", "3", "33" );
+        assertThat( tree.find( l( l( 1L, 2L ), Optional.of( "s1" ) ), context ).toSet() ).containsOnly( "1", "2" );
+    }
+
+    @Test
+    public void testQueryContextStackDepth() {
+        final Tree<String> tree = Tree
+            .<String>build( LONG( "d1", CONTAINS, null ), LONG( "d2", CONTAINS, null ) )
+            .withHashFillFactor( 1 )
+            .load( l( v( "1", 1L, 1L ), v( "2", 2L, null ), v( "3", 3L, 3L ), v( "4", 4L, 4L ), v( "5", null, 5L ) ) );
+
+        var context = tree.newQueryContext( 1 );
+        assertThat( context.getMaxStackDepth() ).isZero();
+
+        assertThat( tree.find( l( l( 1L, 2L, 3L, 4L ), l( 1L, 3L, 4L, 5L ) ), context ).toSet() ).containsOnly( "1", "2", "3", "4", "5" );
+        var depth = context.getMaxStackDepth();
+        assertThat( depth ).isGreaterThan( 1 );
+
+        assertThat( tree.find( l( 1L, 1L ), context ).toSet() ).containsOnly( "1" );
+        assertThat( context.getMaxStackDepth() ).isEqualTo( depth );
+
+        var compiled = tree.compile();
+        var compiledContext = compiled.newQueryContext( depth );
+        assertThat( compiled.find( l( l( 1L, 2L, 3L, 4L ), l( 1L, 3L, 4L, 5L ) ), compiledContext ).toSet() ).containsOnly( "1", "2", "3", "4", "5" );
+        assertThat( compiledContext.getMaxStackDepth() ).isEqualTo( depth );
+    }
+
+    @Test
+    public void testFindBatch() {
+        final Tree<String> tree = Tree
+            .<String>build( LONG( "d1", CONTAINS, null ), STRING( "d2", CONTAINS, false ), ARRAY_LONG( "d3", null ) )
+            .withHashFillFactor( 1 )
+            .load( l(
+                v( "1", 1L, "s1", a( OR, 1L, 2L ) ),
+                v( "2", 2L, "s2", null ),
+                v( "3", 3L, null, a( AND, 1L, 2L ) ),
+                v( "4", null, "s1", null )
+            ) );
+
+        var queries = List.<List<?>>of(
+            l( 1L, "s1", 1L ),
+            l( l( 1L, 2L ), "s2", 3L ),
+            l( 3L, "s3", l( 1L, 2L ) ),
+            l( 3L, "s3", 1L ),
+            l( 5L, "s1", 5L ),
+            l( l( 1L, 1L ), l( "s1", "s1" ), 2L )
+        );
+
+        var results = tree.findBatch( queries );
+
+        assertThat( results ).hasSize( queries.size() );
+        for( var i = 0; i < queries.size(); i++ ) assertThat( results.get( i ) ).isEqualTo( tree.find( queries.get( i ) ) );
+        assertThat( results.get( 0 ) ).containsOnly( "1", "4" );
+        assertThat( results.get( 1 ) ).containsOnly( "2" );
+        assertThat( results.get( 2 ) ).containsOnly( "3" );
+        assertThat( results.get( 3 ) ).isEmpty();
+        assertThat( tree.findBatch( List.of() ) ).isEmpty();
+    }
+
+    @Test
+    public void testSelectionIds() {
+        final Tree<Long> tree = Tree
+            .<Long>build( LONG( "d1", CONTAINS, null ) )
+            .load( l( v( 10L, 1L ), v( 20L, 2L ), v( 30L, ( Object ) null ), v( 10L, 3L ) ) );
+
+        assertThat( tree.getSelectionCount() ).isEqualTo( 3 );
+
+        var context = tree.find( l( l( 1L, 3L ) ), tree.newQueryContext() );
+        assertThat( context.size() ).isEqualTo( 2 );
+        assertThat( context.toLongArray() ).containsOnly( 10L, 30L );
+        for( var i = 0; i < context.size(); i++ ) {
+            assertThat( tree.getSelection( context.getId( i ) ) ).isEqualTo( context.get( i ) );
+            assertThat( context.getLong( i ) ).isEqualTo( context.get( i ) );
+            assertThat( context.containsId( context.getId( i ) ) ).isTrue();
+        }
+        assertThat( context.toBitSet().cardinality() ).isEqualTo( 2 );
+        assertThat( context.toIds() ).isSorted().hasSize( 2 );
+
+        tree.find( l( 2L ), context );
+        assertThat( context.toLongArray() ).containsOnly( 20L, 30L );
+        assertThat( context.toBitSet().cardinality() ).isEqualTo( 2 );
+
+        final Tree<String> strings = Tree.<String>build( LONG( "d1", CONTAINS, null ) ).load( l( v( "1", 1L ) ) );
+        var stringContext = strings.find( l( 1L ), strings.newQueryContext() );
+        assertThat( stringContext.get( 0 ) ).isEqualTo( "1" );
+        assertThatThrownBy( () -> stringContext.getLong( 0 ) ).isInstanceOf( IllegalStateException.class );
+    }
+
+    @Test
+    public void testCache() {
+        var registry = new SimpleMeterRegistry();
+        Metrics.addRegistry( registry );
+        try {
+            var builder = Tree.<String>build( LONG( "d1", CONTAINS, null ), STRING( "d2", CONTAINS, false ) )
+                .withCache( "tree-test", 1000 );
+            var tree = builder.load( l( v( "1", 1L, "s1" ), v( "2", 2L, null ) ) );
+
+            assertThat( tree.find( l( 1L, "s1" ) ) ).containsOnly( "1" );
+            assertThat( tree.find( l( 1L, "s1" ) ) ).containsOnly( "1" );
+            assertThat( tree.find( l( 2L, "s3" ) ) ).containsOnly( "2" );
+            assertThat( tree.find( l( l( 1L, 2L ), "s1" ) ) ).containsOnly( "1", "2" );
+            assertThat( tree.find( l( l( 1L, 2L ), "s1" ) ) ).containsOnly( "1", "2" );
+
+            assertThat( registry.get( "cache.gets" ).tag( "cache", "tree-test" ).tag( "result", "hit" ).functionCounter().count() ).isEqualTo( 2 );
+            assertThat( registry.get( "cache.gets" ).tag( "cache", "tree-test" ).tag( "result", "miss" ).functionCounter().count() ).isEqualTo( 3 );
+
+            assertThatThrownBy( () -> tree.load( l( v( "3", 1L, "s1" ) ) ) ).isInstanceOf( IllegalStateException.class );
+
+            var reloaded = builder.load( l( v( "4", 1L, "s1" ) ) );
+            assertThat( reloaded.find( l( 1L, "s1" ) ) ).containsOnly( "4" );
+            assertThat( tree.find( l( 1L, "s1" ) ) ).containsOnly( "1" );
+            assertThat( reloaded.find( l( 1L, "s1" ) ) ).containsOnly( "4" );
+
+            var limited = builder.load( l( v( "5", 1L, "s1" ), v( "6", 1L, null ) ) );
+            assertThat( limited.find( l( 1L, "s1" ), 1 ) ).hasSize( 1 );
+            assertThat( limited.find( l( 1L, "s1" ) ) ).containsOnly( "5", "6" );
+            assertThat( limited.find( l( 1L, "s1" ), 1 ) ).hasSize( 1 );
+
+            var foreign = Metrics.counter( "cache.custom", "cache", "tree-test" );
+            var rebuilt = Tree.<String>build( LONG( "d1", CONTAINS, null ), STRING( "d2", CONTAINS, false ) )
+                .withCache( "tree-test", 1000 )
+                .load( l( v( "7", 1L, "s1" ) ) );
+            assertThat( rebuilt.find( l( 1L, "s1" ) ) ).containsOnly( "7" );
+            assertThat( registry.find( "cache.gets" ).tag( "cache", "tree-test" ).tag( "result", "miss" ).functionCounters() ).hasSize( 1 );
+            assertThat( registry.get( "cache.gets" ).tag( "cache", "tree-test" ).tag( "result", "miss" ).functionCounter().count() ).isEqualTo( 1 );
+            assertThat( Metrics.globalRegistry.getMeters() ).contains( foreign );
+            Metrics.globalRegistry.remove( foreign );
+        } finally {
+            Metrics.removeRegistry( registry );
+        }
+    }
+
+    @Test
+    public void testPrefixCache() {
+        var registry = new SimpleMeterRegistry();
+        Metrics.addRegistry( registry );
+        try {
+            var builder = Tree.<String>build(
+                    STRING( "site", CONTAINS, PRIORITY_DEFAULT + 1, false, false ),
+                    LONG( "user", CONTAINS, null ),
+                    ENUM( "e", TestEnum.class, CONTAINS, null ) )
+                .withPrefixCache( "tree-prefix-test", 1000, "site" );
+            var tree = builder.load( l(
+                v( "1", "s1", 1L, Test1 ),
+                v( "2", "s1", 2L, null ),
+                v( "3", "s2", null, Test2 ),
+                v( "4", null, 1L, null )
+            ) );
+
+            assertThat( tree.find( l( "s1", 1L, Test1 ) ) ).containsOnly( "1", "4" );
+            assertThat( tree.find( l( "s1", 2L, Test1 ) ) ).containsOnly( "2" );
+            assertThat( tree.find( l( "s1", 3L, Test2 ) ) ).isEmpty();
+            assertThat( tree.find( l( "s2", 1L, Test2 ) ) ).containsOnly( "3", "4" );
+            assertThat( tree.find( l( "s2", 2L, Test1 ) ) ).isEmpty();
+
+            assertThat( registry.get( "cache.gets" ).tag( "cache", "tree-prefix-test" ).tag( "result", "miss" ).functionCounter().count() ).isEqualTo( 2 );
+            assertThat( registry.get( "cache.gets" ).tag( "cache", "tree-prefix-test" ).tag( "result", "hit" ).functionCounter().count() ).isEqualTo( 3 );
+
+            var reloaded = builder.load( l( v( "5", "s1", 3L, Test2 ) ) );
+            assertThat( reloaded.find( l( "s1", 3L, Test2 ) ) ).containsOnly( "5" );
+            assertThat( tree.find( l( "s1", 3L, Test2 ) ) ).isEmpty();
+        } finally {
+            Metrics.removeRegistry( registry );
+        }
+
+        assertThatThrownBy( () -> Tree.<String>build( LONG( "d1", CONTAINS, null ) ).withPrefixCache( "c", 10, "d2" ) )
+            .isInstanceOf( IllegalArgumentException.class );
+    }
+
+    @Test
+    public void testEarlyTermination() {
+        final Tree<String> tree = Tree
+            .<String>build( LONG( "d1", CONTAINS, null ), STRING( "d2", CONTAINS, false ) )
+            .load( l( v( "1", 1L, "s1" ), v( "2", 1L, null ), v( "3", null, "s1" ), v( "4", 2L, "s2" ) ) );
+
+        assertThat( tree.exists( l( 1L, "s1" ) ) ).isTrue();
+        assertThat( tree.exists( l( 3L, "s3" ) ) ).isFalse();
+
+        assertThat( tree.count( l( 1L, "s1" ) ) ).isEqualTo( 3 );
+        assertThat( tree.count( l( l( 1L, 2L ), l( "s1", "s2" ) ) ) ).isEqualTo( 4 );
+        assertThat( tree.count( l( 3L, "s3" ) ) ).isZero();
+
+        assertThat( tree.findAny( l( 1L, "s1" ) ) ).hasValueSatisfying( s -> assertThat( s ).isIn( "1", "2", "3" ) );
+        assertThat( tree.findAny( l( 3L, "s3" ) ) ).isEmpty();
+
+        assertThat( tree.find( l( 1L, "s1" ), 2 ) ).hasSize( 2 ).isSubsetOf( "1", "2", "3" );
+        assertThat( tree.find( l( 1L, "s1" ), 10 ) ).containsOnly( "1", "2", "3" );
+
+        var context = tree.newQueryContext();
+        assertThat( tree.find( l( 1L, "s1" ), 1, context ).size() ).isEqualTo( 1 );
+        assertThat( tree.find( l( 2L, "s2" ), context ).toSet() ).containsOnly( "4" );
+
+        assertThat( Tree.<String>build( LONG( "d1", CONTAINS, null ) ).load( List.of() ).count( l( 1L ) ) ).isZero();
+    }
+
+    @Test
+    public void testFindToSink() {
+        final Tree<String> tree = Tree
+            .<String>build( LONG( "d1", CONTAINS, null ), LONG( "d2", CONTAINS, null ) )
+            .load( l( v( "1", 1L, 1L ), v( "1", 2L, 2L ), v( "2", 1L, null ), v( "3", 3L, 3L ) ) );
+
+        var consumed = new ArrayList<String>();
+        tree.find( l( l( 1L, 2L ), l( 1L, 2L ) ), consumed::add );
+        assertThat( consumed ).containsExactlyInAnyOrder( "1", "2" );
+
+        var context = tree.newQueryContext();
+        var all = new ArrayList<String>();
+        tree.find( l( l( 1L, 2L ), l( 1L, 2L ) ), context, false, ( id, selection ) -> {
+            assertThat( tree.getSelection( id ) ).isEqualTo( selection );
+            all.add( selection );
+        } );
+        assertThat( all ).containsExactlyInAnyOrder( "1", "1", "2" );
+
+        var distinct = new ArrayList<String>();
+        tree.find( l( 3L, 3L ), context, true, ( id, selection ) -> distinct.add( selection ) );
+        assertThat( distinct ).containsExactly( "3" );
+    }
+
     public enum TestEnum {
         Test1, Test2, Test3, Test4, UNKNOWN
     }